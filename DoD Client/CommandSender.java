@@ -0,0 +1,53 @@
+/*
+ * This class sends commands to the server without waiting for the replies.
+ * Any number of commands can be sent together, they are all written to the
+ * socket in one go and the server answers them in the order they were sent.
+ * This lets a player or a bot keep a MOVE and the LOOK after it in flight at
+ * the same time rather than waiting for each reply in turn. Reading the
+ * replies is left to whoever owns the other side of the socket.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+public class CommandSender {
+
+	private OutputStream serverOutput;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(64);
+	private volatile boolean binary = false;
+
+	public CommandSender(Socket sock) throws IOException {
+		this.serverOutput = sock.getOutputStream();
+	}
+
+	/*
+	 * This method writes the given commands to the server as text lines, or
+	 * as binary frames once the server has agreed to the binary protocol.
+	 */
+	public synchronized void send(String... commands) throws IOException {
+
+		pending.reset();
+		for (String command : commands) {
+			if (binary) {
+				pending.write(BinaryProtocol.encodeCommand(command));
+			} else {
+				for (int i = 0; i < command.length(); i++) {
+					pending.write(command.charAt(i));
+				}
+				pending.write('\n');
+			}
+		}
+
+		pending.writeTo(serverOutput);
+		serverOutput.flush();
+	}
+
+	/*
+	 * This method switches the commands sent from now on to binary frames.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+}
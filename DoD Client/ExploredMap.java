@@ -0,0 +1,238 @@
+/*
+ * This class remembers every tile the player has seen, stitched together
+ * from the look windows the server sends. The server never says where the
+ * player is, so tiles are stored relative to where the player first looked,
+ * which is (0, 0), and the store grows in whichever direction the player
+ * explores.
+ *
+ * Walls and exits never change so what is remembered about them can be
+ * trusted, which is what lets the client tell that a move will fail without
+ * asking. Players move about so they aren't remembered. What is remembered
+ * about the tile under a player is kept, or it is remembered as floor if
+ * nothing is known about it yet.
+ *
+ * The tiles are also kept as a picture one pixel a tile, which is drawn
+ * scaled up as a minimap.
+ */
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+public class ExploredMap {
+
+	final static char UNKNOWN = 0;
+	private final static int INITIAL_SIZE = 64;
+	private final static int UNKNOWN_COLOUR = 0x202020;
+
+	private char[] tiles;
+	private BufferedImage image;
+	private int top;
+	private int left;
+	private int height;
+	private int width;
+
+	public ExploredMap() {
+		top = -INITIAL_SIZE / 2;
+		left = -INITIAL_SIZE / 2;
+		height = INITIAL_SIZE;
+		width = INITIAL_SIZE;
+		tiles = new char[height * width];
+		image = newImage(height, width);
+	}
+
+	/*
+	 * This method remembers the tiles of a look window whose middle is the
+	 * given tile. The corners are outside the player's view so are skipped.
+	 */
+	public synchronized void record(String[] window, int y, int x) {
+
+		int size = window.length;
+		int half = size / 2;
+		include(y - half, x - half, y + half, x + half);
+
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				char tile = window[i].charAt(j);
+				int index = (y - half + i - top) * width + x - half + j - left;
+				if (tile == 'X' || (tile == 'P' && tiles[index] != UNKNOWN)) {
+					continue;
+				}
+				if (tile == 'P') {
+					tile = '.';
+				}
+				if (tiles[index] != tile) {
+					tiles[index] = tile;
+					image.setRGB(x - half + j - left, y - half + i - top, colour(tile));
+				}
+			}
+		}
+	}
+
+	/*
+	 * This method returns the remembered tile, or UNKNOWN if it hasn't been seen.
+	 */
+	public synchronized char tile(int y, int x) {
+
+		if (y < top || x < left || y >= top + height || x >= left + width) {
+			return UNKNOWN;
+		}
+		return tiles[(y - top) * width + x - left];
+	}
+
+	/*
+	 * This method returns true if every tile the player would see from the
+	 * given tile has been seen before.
+	 */
+	public synchronized boolean isKnown(int y, int x, int size) {
+
+		int half = size / 2;
+		for (int i = -half; i <= half; i++) {
+			for (int j = -half; j <= half; j++) {
+				boolean corner = Math.abs(i) == half && Math.abs(j) == half;
+				if (!corner && tile(y + i, x + j) == UNKNOWN) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * This method builds the look window the player would see from the given
+	 * tile out of the remembered tiles, as the server would send it. Tiles
+	 * that haven't been seen are shown like the corners, as something that
+	 * can't be seen.
+	 */
+	public synchronized String[] window(int y, int x, int size) {
+
+		int half = size / 2;
+		String[] window = new String[size];
+		char[] row = new char[size];
+
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				char tile = tile(y - half + i, x - half + j);
+				boolean corner = (i == 0 || i == size - 1) && (j == 0 || j == size - 1);
+				row[j] = corner || tile == UNKNOWN ? 'X' : tile;
+			}
+			window[i] = new String(row);
+		}
+		window[half] = window[half].substring(0, half) + 'P' + window[half].substring(half + 1);
+		return window;
+	}
+
+	/*
+	 * This method checks a look window against what is remembered, as if its
+	 * middle were the given tile. It returns how many remembered tiles agree
+	 * with it, or -1 if a wall or exit is somewhere it can't be.
+	 */
+	public synchronized int agreement(String[] window, int y, int x) {
+
+		int half = window.length / 2;
+		int agreed = 0;
+
+		for (int i = 0; i < window.length; i++) {
+			for (int j = 0; j < window.length; j++) {
+				char seen = window[i].charAt(j);
+				char remembered = tile(y - half + i, x - half + j);
+				if (seen == 'X' || seen == 'P' || remembered == UNKNOWN) {
+					continue;
+				}
+				if (seen == remembered) {
+					agreed++;
+				} else if (seen == '#' || seen == 'E' || remembered == '#' || remembered == 'E') {
+					return -1;
+				}
+			}
+		}
+		return agreed;
+	}
+
+	/*
+	 * This method draws the remembered tiles around the given tile into the
+	 * given square, scale pixels to a tile, with the player in the middle.
+	 */
+	public synchronized void drawMinimap(Graphics g, int drawX, int drawY, int drawSize, int scale, int y, int x) {
+
+		int tilesAcross = drawSize / scale;
+		int fromY = y - tilesAcross / 2 - top;
+		int fromX = x - tilesAcross / 2 - left;
+
+		g.setColor(new Color(UNKNOWN_COLOUR));
+		g.fillRect(drawX, drawY, drawSize, drawSize);
+		g.drawImage(image, drawX, drawY, drawX + tilesAcross * scale, drawY + tilesAcross * scale,
+				fromX, fromY, fromX + tilesAcross, fromY + tilesAcross, null);
+
+		g.setColor(Color.RED);
+		g.fillRect(drawX + tilesAcross / 2 * scale, drawY + tilesAcross / 2 * scale, scale, scale);
+	}
+
+	/*
+	 * This method grows the store until it holds the given tiles, at least
+	 * doubling it each time so growing doesn't happen often.
+	 */
+	private void include(int fromY, int fromX, int toY, int toX) {
+
+		if (fromY >= top && fromX >= left && toY < top + height && toX < left + width) {
+			return;
+		}
+
+		int newTop = Math.min(top, fromY - height / 2);
+		int newLeft = Math.min(left, fromX - width / 2);
+		int newHeight = Math.max(top + height, toY + height / 2 + 1) - newTop;
+		int newWidth = Math.max(left + width, toX + width / 2 + 1) - newLeft;
+		if (fromY >= top && toY < top + height) {
+			newTop = top;
+			newHeight = height;
+		}
+		if (fromX >= left && toX < left + width) {
+			newLeft = left;
+			newWidth = width;
+		}
+
+		char[] newTiles = new char[newHeight * newWidth];
+		BufferedImage newImage = newImage(newHeight, newWidth);
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(tiles, y * width, newTiles, (y + top - newTop) * newWidth + left - newLeft, width);
+		}
+		newImage.getGraphics().drawImage(image, left - newLeft, top - newTop, null);
+
+		tiles = newTiles;
+		image = newImage;
+		top = newTop;
+		left = newLeft;
+		height = newHeight;
+		width = newWidth;
+	}
+
+	private static BufferedImage newImage(int height, int width) {
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[width];
+		Arrays.fill(row, UNKNOWN_COLOUR);
+		for (int y = 0; y < height; y++) {
+			image.setRGB(0, y, width, 1, row, 0, width);
+		}
+		return image;
+	}
+
+	private static int colour(char tile) {
+
+		switch (tile) {
+
+		case '.':
+			return 0xC8C8C8;
+
+		case 'G':
+			return 0xFFD700;
+
+		case 'E':
+			return 0x00C000;
+
+		default:
+			return 0x505050;
+		}
+	}
+}
@@ -1,301 +1,601 @@
-/*
- * This class creates a GUI that can be used to control a player
- * in the dungeon. This class also outputs the players commands
- * to the server and shows the server's response.
- */
-
-import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.ArrayList;
-
-import javax.swing.*;
-
-public class HumanGUI {
-	
-	PrintWriter serverWriter = null;
-	String[] lookWindow = null;
-	int goldRequired = -1;
-	int goldPickedUp = 0;
-	private boolean firstTime = true;
-	private static final String[] COMMANDS = {"MOVE N", "MOVE W", "PICKUP", "MOVE E", "MOVE S", "LOOK", "HELLO"};
-	JPanel mapPanel = new JPanel();
-	JProgressBar goldProgress = new JProgressBar();
-	
-	/*
-	 * This constructor sets up the print writer and creates a new thread
-	 * to handle creating the GUI.
-	 */
-	public HumanGUI(Socket sock) {
-		
-		try {
-			this.serverWriter = new PrintWriter(sock.getOutputStream(), true);
-			
-		} catch (IOException e) {
-			JOptionPane.showMessageDialog(null,"Connection to server was lost the game will now exit."
-					,"Server Connection Error",JOptionPane.WARNING_MESSAGE);
-			System.exit(-1);
-		}
-		
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				createGUI();
-			}
-		});
-	}
-	
-	/*
-	 * This method creates the GUI and all the components used to control the player and
-	 * shows the data received from the server.
-	 */
-	private void createGUI() {
-		
-		// Send LOOK and HELLO commands to setup the GUI look window and gold progress bar
-		outputToServer(COMMANDS[6]);
-		outputToServer(COMMANDS[5]);
-		
-		FlowLayout flowLayout = new FlowLayout(FlowLayout.LEFT, 0, 0);
-		JFrame frame = new JFrame("Dungeon of Doom");
-		frame.setPreferredSize(new Dimension(500,718));
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);		
-		frame.setLayout(flowLayout);
-		
-		// Map panel is a global variable as other methods need to access it
-		mapPanel.setPreferredSize(new Dimension(500,500));
-		mapPanel.setLayout(flowLayout);
-		
-		// Give the server time to respond then update the map
-		try {
-			Thread.sleep(50);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		updateMap();
-		
-		// Create panels to fill empty space
-		JPanel vertPadPanel = new JPanel();
-		vertPadPanel.setPreferredSize(new Dimension(500,5));
-		JPanel horizPadPanel = new JPanel();
-		horizPadPanel.setPreferredSize(new Dimension(20,180));
-		
-		GridLayout gridLayout = new GridLayout(0, 3);
-		JPanel commandPanel = new JPanel();
-		commandPanel.setPreferredSize(new Dimension(180,180));		
-		commandPanel.setLayout(gridLayout);
-		
-		// Create 9 components to create a 3x3 grid with 5 buttons and 4 empty spaces
-		ArrayList<JButton> commandButtons = new ArrayList<JButton>();
-		int buttonCounter = 0;
-		JButton button;
-		JLabel fillerLabel;
-		for(int i = 0; i < 9; i++) {
-			if(i == 0 || i == 2 || i == 6 || i== 8) {
-				fillerLabel = new JLabel();
-				fillerLabel.setPreferredSize(new Dimension(55,55));
-				commandPanel.add(fillerLabel);
-			}
-			else {
-				button = new JButton();
-				button.setPreferredSize(new Dimension(55, 55));
-				button.setMargin(new Insets(0, 0, 0, 0));
-				button.setFont(new Font("Arial", Font.PLAIN, 12));
-				button.setText(COMMANDS[buttonCounter]);
-				commandButtons.add(button);
-				commandPanel.add(button);
-				buttonCounter++;
-			}
-		}
-		
-		// Send MOVE NORTH command and a LOOK command after
-		commandButtons.get(0).addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				outputToServer(COMMANDS[0]);
-				outputToServer(COMMANDS[5]);
-				updateMap();
-			}
-		});
-		
-		// Send MOVE WEST command and a LOOK command after
-		commandButtons.get(1).addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				outputToServer(COMMANDS[1]);
-				outputToServer(COMMANDS[5]);
-				updateMap();
-			}
-		});
-		
-		// Send PICKUP command to server
-		commandButtons.get(2).addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				outputToServer(COMMANDS[2]);
-			}
-		});
-		
-		// Send MOVE EAST command and a LOOK command after
-		commandButtons.get(3).addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				outputToServer(COMMANDS[3]);
-				outputToServer(COMMANDS[5]);
-				updateMap();
-			}
-		});
-		
-		// Send MOVE SOUTH command and a LOOK command after
-		commandButtons.get(4).addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				outputToServer(COMMANDS[4]);
-				outputToServer(COMMANDS[5]);
-				updateMap();
-			}
-		});
-		
-		
-		FlowLayout altFlowLayout = new FlowLayout(FlowLayout.LEFT, 0, 5);
-		
-		JPanel altHorizPadPanel = new JPanel();
-		altHorizPadPanel.setPreferredSize(new Dimension(33,180));		
-		
-		// Setup panel to display current gold collection progress 
-		JPanel objectivePanel = new JPanel();
-		objectivePanel.setPreferredSize(new Dimension(240,180));
-		objectivePanel.setLayout(altFlowLayout);
-		
-		JTextArea progressBarText = new JTextArea("\nThis bar shows how much gold you need\n"
-				+ "          to collect to exit the dungeon.\n");
-		progressBarText.setOpaque(false);
-		
-		objectivePanel.add(progressBarText);
-		
-		goldProgress.setPreferredSize(new Dimension(226,30));
-		goldProgress.setStringPainted(true);
-		goldProgress.setForeground(Color.BLUE);
-		goldProgress.setValue(0);
-		objectivePanel.add(goldProgress);
-		
-		// Create label to pad empty space
-		JLabel paddingLabel = new JLabel();
-		paddingLabel.setPreferredSize(new Dimension(240, 10));
-		objectivePanel.add(paddingLabel);
-		
-		JButton quitButton = new JButton("Quit");
-		quitButton.setMargin(new Insets(0, 0, 0, 0));
-		quitButton.setFont(new Font("Arial", Font.PLAIN, 18));
-		quitButton.setPreferredSize(new Dimension(226,55));
-		objectivePanel.add(quitButton);
-		
-		
-		quitButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				System.exit(-1);
-			}
-		});
-		
-		// Add all the panels to the frame
-		frame.add(mapPanel);
-		frame.add(vertPadPanel);
-		frame.add(horizPadPanel);
-		frame.add(commandPanel);
-		frame.add(altHorizPadPanel);
-		frame.add(objectivePanel);
-		frame.pack();
-		frame.setLocationRelativeTo(null);
-		frame.setResizable(false);
-		frame.setVisible(true);
-		
-	}
-	
-	/*
-	 * This method updates the map everytime the server sends the response
-	 * to a LOOK command.
-	 */
-	private void updateMap() {
-		
-		// If running for first time an exception will occur as mapPanel is empty
-		if(firstTime != true) {
-			mapPanel.removeAll();
-		}
-		firstTime = false;
-		
-		ImageIcon icon = null;
-		
-		// Fill 5x5 grid with pictures representing tiles
-		for(int i = 0; i < 25; i++) {
-			switch (lookWindow[i / 5].charAt(i % 5)) {
-			case 'X':
-				icon = new ImageIcon("Wall.png");
-				break;
-				
-			case '#':
-				icon = new ImageIcon("Wall.png");
-				break;	
-				
-			case '.':
-				icon = new ImageIcon("Floor.png");
-				break;
-				
-			case 'P':
-				icon = new ImageIcon("Player.png");
-				break;
-				
-			case 'G':
-				icon = new ImageIcon("Gold.png");
-				break;
-				
-			case 'E':
-				icon = new ImageIcon("Exit.png");
-				break;
-				
-			}
-			mapPanel.add(new JLabel(icon));
-		}
-		mapPanel.revalidate();
-		mapPanel.repaint();
-	}
-	
-	/*
-	 * This method updates the gold progress bar when a player picks up gold.
-	 * It also sets the amount of gold needed when the player connects to the server.
-	 */
-	public void updateGold(String goldInput) {
-		
-		// First time this method is run read in the number of gold required
-		if(goldRequired == -1) {
-			goldRequired = Integer.parseInt(goldInput.substring(6));
-			if(goldRequired == 0) {
-				goldProgress.setValue(100);
-			}
-		}
-		
-		else {
-			goldPickedUp++;
-			// Protect against divide by 0 error
-			if(goldProgress.getValue() != 100 && goldRequired != 0) {
-				goldProgress.setValue((100 * goldPickedUp) / goldRequired);
-			}
-		}
-	}
-	
-	/*
-	 * This method is used to set the look output from the server.
-	 */
-	public void updateLook(String[] lookWindow) {
-		this.lookWindow = lookWindow;
-	}
-	
-	/*
-	 * This method outputs commands to the server and then waits to give
-	 * the server time to respond before displaying the output.
-	 */
-	private void outputToServer(String output) {
-		serverWriter.println(output);
-
-		try {
-			Thread.sleep(35);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-	}
-}
+/*
+ * This class creates a GUI that can be used to control a player
+ * in the dungeon. This class also outputs the players commands
+ * to the server and shows the server's response. The first HELLO
+ * asks the server to switch to the binary protocol and the buttons only
+ * work once it has been answered. Commands are sent
+ * without waiting for the replies, each reply is dealt with when its
+ * future completes and the map is redrawn whenever a look window
+ * arrives. Once the server has agreed to send the look window whenever
+ * it changes moves are no longer followed by a LOOK.
+ * The look window is drawn by one component from tile pictures loaded
+ * once, and only the tiles that differ from the last window are redrawn.
+ * Every look window is remembered in an explored map, drawn as a minimap in
+ * the corner of the look window, which can't be seen anyway. Moves are shown
+ * straight away from what is remembered and taken back if the server says
+ * they failed. A move into a remembered wall isn't sent at all, and a LOOK is
+ * only sent when the player is going somewhere that hasn't been seen.
+ */
+
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.*;
+
+public class HumanGUI implements ServerConnection.Listener {
+	
+	ServerConnection connection = null;
+	volatile String[] lookWindow = null;
+	int goldRequired = -1;
+	int goldPickedUp = 0;
+	private AtomicBoolean redrawScheduled = new AtomicBoolean();
+	private String[] drawnWindow = null;
+	private Image wall = new ImageIcon("Wall.png").getImage();
+	private Image floor = new ImageIcon("Floor.png").getImage();
+	private Image gold = new ImageIcon("Gold.png").getImage();
+	private Image exit = new ImageIcon("Exit.png").getImage();
+	private Image player = new ImageIcon("Player.png").getImage();
+	private final static int MAP_SIZE = 500;
+	private static final String[] COMMANDS = {"MOVE N", "MOVE W", "PICKUP", "MOVE E", "MOVE S", "LOOK DELTA", "HELLO", "SUBSCRIBE"};
+	private static final String CONNECTION_ERROR_MSG = "Connection to server was lost the game will now exit.";
+	private static final String WINNER_MSG = "You have won the game the game will now exit.";
+	private final static int HELLO_TIMEOUT_SECONDS = 5;
+	private volatile boolean subscribed = false;
+	private LookView mapPanel = new LookView();
+	private final static int MINIMAP_SIZE = 90;
+	private final static int MINIMAP_SCALE = 3;
+	
+	// Everything below is guarded by the explored map's lock. Positions are
+	// relative to where the player first looked, the confirmed one is where
+	// the server has said the player is and the predicted one also counts
+	// the moves it hasn't answered yet
+	private ExploredMap explored = new ExploredMap();
+	private ArrayDeque<Move> pendingMoves = new ArrayDeque<Move>();
+	private int confirmedY = 0;
+	private int confirmedX = 0;
+	private int predictedY = 0;
+	private int predictedX = 0;
+	private int viewSize = 5;
+	private int looksWaiting = 0;
+	private boolean windowLost = false;
+	private String[] serverWindow = null;
+	private int serverY;
+	private int serverX;
+	
+	/*
+	 * A move that has been shown but not yet answered by the server.
+	 */
+	private static class Move {
+		int[] delta;
+		CompletableFuture<String[]> reply = null;
+		
+		Move(int[] delta) {
+			this.delta = delta;
+		}
+	}
+	JProgressBar goldProgress = new JProgressBar();
+	
+	/*
+	 * This constructor sets up the connection, starts the thread that reads
+	 * the server's replies and creates a new thread to handle creating the GUI.
+	 */
+	public HumanGUI(Socket sock) {
+		
+		try {
+			this.connection = new ServerConnection(sock, this);
+			
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(null, CONNECTION_ERROR_MSG
+					,"Server Connection Error",JOptionPane.WARNING_MESSAGE);
+			System.exit(-1);
+		}
+		new Thread(connection, "ServerConnection").start();
+		
+		javax.swing.SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				createGUI();
+			}
+		});
+	}
+	
+	/*
+	 * This method creates the GUI and all the components used to control the player and
+	 * shows the data received from the server.
+	 */
+	private void createGUI() {
+		
+		FlowLayout flowLayout = new FlowLayout(FlowLayout.LEFT, 0, 0);
+		JFrame frame = new JFrame("Dungeon of Doom");
+		frame.setPreferredSize(new Dimension(500,718));
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);		
+		frame.setLayout(flowLayout);
+		
+		// Map panel is a global variable as other methods need to access it
+		mapPanel.setPreferredSize(new Dimension(MAP_SIZE, MAP_SIZE));
+		
+		// Create panels to fill empty space
+		JPanel vertPadPanel = new JPanel();
+		vertPadPanel.setPreferredSize(new Dimension(500,5));
+		JPanel horizPadPanel = new JPanel();
+		horizPadPanel.setPreferredSize(new Dimension(20,180));
+		
+		GridLayout gridLayout = new GridLayout(0, 3);
+		JPanel commandPanel = new JPanel();
+		commandPanel.setPreferredSize(new Dimension(180,180));		
+		commandPanel.setLayout(gridLayout);
+		
+		// Create 9 components to create a 3x3 grid with 5 buttons and 4 empty spaces
+		ArrayList<JButton> commandButtons = new ArrayList<JButton>();
+		int buttonCounter = 0;
+		JButton button;
+		JLabel fillerLabel;
+		for(int i = 0; i < 9; i++) {
+			if(i == 0 || i == 2 || i == 6 || i== 8) {
+				fillerLabel = new JLabel();
+				fillerLabel.setPreferredSize(new Dimension(55,55));
+				commandPanel.add(fillerLabel);
+			}
+			else {
+				button = new JButton();
+				button.setPreferredSize(new Dimension(55, 55));
+				button.setMargin(new Insets(0, 0, 0, 0));
+				button.setFont(new Font("Arial", Font.PLAIN, 12));
+				button.setText(COMMANDS[buttonCounter]);
+				commandButtons.add(button);
+				commandPanel.add(button);
+				buttonCounter++;
+			}
+		}
+		
+		// Send MOVE NORTH command and a LOOK command after
+		commandButtons.get(0).addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				outputMove(COMMANDS[0]);
+			}
+		});
+		
+		// Send MOVE WEST command and a LOOK command after
+		commandButtons.get(1).addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				outputMove(COMMANDS[1]);
+			}
+		});
+		
+		// Send PICKUP command to server
+		commandButtons.get(2).addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				// The gold bar is only touched on the event thread, like the HELLO answer
+				connection.send(COMMANDS[2]).thenAccept(reply -> {
+					if (reply[0].startsWith("SUCCESS")) {
+						javax.swing.SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								updateGold(reply[0]);
+							}
+						});
+					}
+				});
+			}
+		});
+		
+		// Send MOVE EAST command and a LOOK command after
+		commandButtons.get(3).addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				outputMove(COMMANDS[3]);
+			}
+		});
+		
+		// Send MOVE SOUTH command and a LOOK command after
+		commandButtons.get(4).addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				outputMove(COMMANDS[4]);
+			}
+		});
+		
+		
+		FlowLayout altFlowLayout = new FlowLayout(FlowLayout.LEFT, 0, 5);
+		
+		JPanel altHorizPadPanel = new JPanel();
+		altHorizPadPanel.setPreferredSize(new Dimension(33,180));		
+		
+		// Setup panel to display current gold collection progress 
+		JPanel objectivePanel = new JPanel();
+		objectivePanel.setPreferredSize(new Dimension(240,180));
+		objectivePanel.setLayout(altFlowLayout);
+		
+		JTextArea progressBarText = new JTextArea("\nThis bar shows how much gold you need\n"
+				+ "          to collect to exit the dungeon.\n");
+		progressBarText.setOpaque(false);
+		
+		objectivePanel.add(progressBarText);
+		
+		goldProgress.setPreferredSize(new Dimension(226,30));
+		goldProgress.setStringPainted(true);
+		goldProgress.setForeground(Color.BLUE);
+		goldProgress.setValue(0);
+		objectivePanel.add(goldProgress);
+		
+		// Create label to pad empty space
+		JLabel paddingLabel = new JLabel();
+		paddingLabel.setPreferredSize(new Dimension(240, 10));
+		objectivePanel.add(paddingLabel);
+		
+		JButton quitButton = new JButton("Quit");
+		quitButton.setMargin(new Insets(0, 0, 0, 0));
+		quitButton.setFont(new Font("Arial", Font.PLAIN, 18));
+		quitButton.setPreferredSize(new Dimension(226,55));
+		objectivePanel.add(quitButton);
+		
+		
+		quitButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				System.exit(-1);
+			}
+		});
+		
+		// Add all the panels to the frame
+		frame.add(mapPanel);
+		frame.add(vertPadPanel);
+		frame.add(horizPadPanel);
+		frame.add(commandPanel);
+		frame.add(altHorizPadPanel);
+		frame.add(objectivePanel);
+		frame.pack();
+		frame.setLocationRelativeTo(null);
+		frame.setResizable(false);
+		frame.setVisible(true);
+		
+		// The buttons stay off until the server has answered HELLO, as that answer
+		// decides whether everything after it is sent in text or binary
+		for (JButton commandButton : commandButtons) {
+			commandButton.setEnabled(false);
+		}
+		sayHello(commandButtons);
+	}
+	
+	/*
+	 * This method sends HELLO and, once it has been answered, SUBSCRIBE and a LOOK
+	 * to set up the gold progress bar and the look window. These are sent from the
+	 * reading thread straight after it has switched protocol, so the window doesn't
+	 * wait on the HELLO. If it isn't answered in time the game can't be played.
+	 */
+	private void sayHello(List<JButton> commandButtons) {
+		
+		connection.send(COMMANDS[6] + " BINARY").orTimeout(HELLO_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+				.whenComplete((hello, e) -> {
+			if (e != null) {
+				disconnected();
+				return;
+			}
+			
+			// The map is drawn once the answer to the LOOK arrives
+			connection.send(COMMANDS[7], COMMANDS[5]).get(0).thenAccept(reply -> {
+				if (reply[0].equals("SUBSCRIBED")) {
+					subscribed = true;
+				}
+			});
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					updateGold(hello[0]);
+					for (JButton commandButton : commandButtons) {
+						commandButton.setEnabled(true);
+					}
+				}
+			});
+		});
+	}
+	
+	/*
+	 * This method updates the map everytime the server sends the response
+	 * to a LOOK command. Only the tiles that differ from the window drawn
+	 * last are drawn again. Look windows that arrive while one is waiting
+	 * to be drawn replace it, so only the newest is drawn.
+	 */
+	private void updateMap() {
+		
+		redrawScheduled.set(false);
+		String[] window = lookWindow;
+		int size = window.length;
+		int tileSize = MAP_SIZE / size;
+		
+		// Everything is drawn if the window changes size
+		if (drawnWindow != null && drawnWindow.length != size) {
+			drawnWindow = null;
+		}
+		
+		Graphics g = mapPanel.buffer.getGraphics();
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				char tile = window[y].charAt(x);
+				if (drawnWindow != null && drawnWindow[y].charAt(x) == tile) {
+					continue;
+				}
+				g.drawImage(tileImage(tile), x * tileSize, y * tileSize, tileSize, tileSize, null);
+				mapPanel.repaint(x * tileSize, y * tileSize, tileSize, tileSize);
+			}
+		}
+		g.dispose();
+		drawnWindow = window;
+	}
+	
+	/*
+	 * This method returns the picture for a tile of the look window.
+	 */
+	private Image tileImage(char tile) {
+		
+		switch (tile) {
+			
+		case '.':
+			return floor;
+			
+		case 'P':
+			return player;
+			
+		case 'G':
+			return gold;
+			
+		case 'E':
+			return exit;
+			
+		default:
+			return wall;
+		}
+	}
+	
+	/*
+	 * This component shows the look window. The tiles are drawn into an image
+	 * kept between frames, which is copied to the screen when Swing paints.
+	 */
+	private class LookView extends JComponent {
+		
+		private static final long serialVersionUID = 1L;
+		private BufferedImage buffer = new BufferedImage(MAP_SIZE, MAP_SIZE, BufferedImage.TYPE_INT_RGB);
+		
+		@Override
+		protected void paintComponent(Graphics g) {
+			g.drawImage(buffer, 0, 0, null);
+			synchronized (explored) {
+				explored.drawMinimap(g, MAP_SIZE - MINIMAP_SIZE - 5, 5, MINIMAP_SIZE, MINIMAP_SCALE, predictedY, predictedX);
+			}
+		}
+	}
+	
+	/*
+	 * This method updates the gold progress bar when a player picks up gold.
+	 * It also sets the amount of gold needed when the player connects to the server.
+	 * It is only called on the event thread, which keeps the gold counts to itself.
+	 */
+	public void updateGold(String goldInput) {
+		
+		// First time this method is run read in the number of gold required
+		if(goldRequired == -1) {
+			goldRequired = Integer.parseInt(goldInput.substring(6));
+			if(goldRequired == 0) {
+				goldProgress.setValue(100);
+			}
+		}
+		
+		else {
+			goldPickedUp++;
+			// Protect against divide by 0 error
+			if(goldProgress.getValue() != 100 && goldRequired != 0) {
+				goldProgress.setValue((100 * goldPickedUp) / goldRequired);
+			}
+		}
+	}
+	
+	/*
+	 * This method is used to set the look output from the server and
+	 * redraw the map with it.
+	 */
+	public void updateLook(String[] lookWindow) {
+		this.lookWindow = lookWindow;
+		
+		if (redrawScheduled.compareAndSet(false, true)) {
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					updateMap();
+				}
+			});
+		}
+	}
+	
+	/*
+	 * This method shows the look window from where the player is predicted
+	 * to be. That is the server's if it is from there, otherwise it is built
+	 * from the explored map.
+	 */
+	private void showPredicted() {
+		
+		String[] view;
+		synchronized (explored) {
+			if (serverWindow != null && serverY == predictedY && serverX == predictedX) {
+				view = serverWindow;
+			} else {
+				view = explored.window(predictedY, predictedX, viewSize);
+			}
+		}
+		updateLook(view);
+		mapPanel.repaint(MAP_SIZE - MINIMAP_SIZE - 5, 5, MINIMAP_SIZE, MINIMAP_SIZE);
+	}
+	
+	/*
+	 * This method works out where a look window was seen from. A window that
+	 * answers a LOOK, or arrives when no moves are waiting for replies, is from
+	 * where the server last said the player was. One sent without being asked
+	 * may be from after any number of the waiting moves, so it is only placed
+	 * if exactly one of those places fits the walls already remembered.
+	 * It returns null if the window can't be placed.
+	 */
+	private int[] placeWindow(String[] window, boolean asked) {
+		
+		if (asked || pendingMoves.isEmpty()) {
+			return new int[] { confirmedY, confirmedX };
+		}
+		
+		int y = confirmedY;
+		int x = confirmedX;
+		int[] place = null;
+		int fits = 0;
+		for (Move move : pendingMoves) {
+			if (explored.agreement(window, y, x) >= 0) {
+				place = new int[] { y, x };
+				fits++;
+			}
+			y += move.delta[0];
+			x += move.delta[1];
+		}
+		if (explored.agreement(window, y, x) >= 0) {
+			place = new int[] { y, x };
+			fits++;
+		}
+		return fits == 1 ? place : null;
+	}
+	
+	/*
+	 * These methods are called by the connection's reading thread with look
+	 * windows, including ones the server sends without being asked, and when
+	 * the game is over.
+	 */
+	public void lookChanged(String[] window, boolean asked) {
+		
+		synchronized (explored) {
+			settleMoves();
+			viewSize = window.length;
+			int[] place = placeWindow(window, asked);
+			if (place == null) {
+				windowLost = true;
+			} else {
+				explored.record(window, place[0], place[1]);
+				serverWindow = window;
+				serverY = place[0];
+				serverX = place[1];
+			}
+		}
+		showPredicted();
+	}
+	
+	public void won() {
+		JOptionPane.showMessageDialog(null, WINNER_MSG, null, JOptionPane.WARNING_MESSAGE);
+		System.exit(-1);
+	}
+	
+	public void disconnected() {
+		JOptionPane.showMessageDialog(null, CONNECTION_ERROR_MSG, null, JOptionPane.WARNING_MESSAGE);
+		System.exit(-1);
+	}
+	
+	/*
+	 * This method shows a move straight away and outputs it, followed by a
+	 * LOOK if the player is going somewhere that hasn't been seen and the
+	 * server won't send the new look window anyway. A move into a wall that
+	 * has been seen would fail so it isn't sent.
+	 */
+	private void outputMove(String move) {
+		
+		int[] delta;
+		switch (move.charAt(5)) {
+		case 'N':
+			delta = new int[] { -1, 0 };
+			break;
+		case 'S':
+			delta = new int[] { 1, 0 };
+			break;
+		case 'E':
+			delta = new int[] { 0, 1 };
+			break;
+		default:
+			delta = new int[] { 0, -1 };
+		}
+		
+		// Sent under the lock so no look window can be placed before the move is waiting for its reply
+		Move pendingMove = new Move(delta);
+		List<CompletableFuture<String[]>> replies;
+		synchronized (explored) {
+			if (explored.tile(predictedY + delta[0], predictedX + delta[1]) == '#') {
+				return;
+			}
+			predictedY += delta[0];
+			predictedX += delta[1];
+			pendingMoves.add(pendingMove);
+			serverWindow = null;
+			if (!subscribed && looksWaiting == 0 && !explored.isKnown(predictedY, predictedX, viewSize)) {
+				looksWaiting++;
+				replies = connection.send(move, COMMANDS[5]);
+				replies.get(1).whenComplete((reply, e) -> lookAnswered());
+			} else {
+				replies = connection.send(new String[] { move });
+			}
+			pendingMove.reply = replies.get(0);
+		}
+		pendingMove.reply.whenComplete((reply, e) -> moveAnswered());
+		showPredicted();
+	}
+	
+	/*
+	 * This method takes the moves the server has answered off the front of
+	 * the waiting moves, in the order they were sent, taking back any that
+	 * failed. A reply's callback can run late on whichever thread added it,
+	 * so this is also done before placing a look window, which is read after
+	 * the replies before it. It returns true if a move failed.
+	 */
+	private boolean settleMoves() {
+		
+		boolean failed = false;
+		while (!pendingMoves.isEmpty() && pendingMoves.peek().reply != null && pendingMoves.peek().reply.isDone()) {
+			Move move = pendingMoves.poll();
+			if (!move.reply.isCompletedExceptionally() && move.reply.getNow(null)[0].equals("SUCCESS")) {
+				confirmedY += move.delta[0];
+				confirmedX += move.delta[1];
+			} else {
+				predictedY -= move.delta[0];
+				predictedX -= move.delta[1];
+				failed = true;
+			}
+		}
+		return failed;
+	}
+	
+	/*
+	 * This method is called once the server has answered a move. Once every
+	 * move has been answered a LOOK is sent if the player can see somewhere
+	 * that isn't in the explored map, or if a look window was thrown away
+	 * because it couldn't be placed.
+	 */
+	private void moveAnswered() {
+		
+		boolean failed;
+		boolean look;
+		synchronized (explored) {
+			failed = settleMoves();
+			look = pendingMoves.isEmpty() && looksWaiting == 0
+					&& (subscribed ? windowLost : !explored.isKnown(confirmedY, confirmedX, viewSize));
+			if (look) {
+				looksWaiting++;
+				windowLost = false;
+			}
+		}
+		
+		if (failed) {
+			showPredicted();
+		}
+		if (look) {
+			connection.send(COMMANDS[5]).whenComplete((reply, e) -> lookAnswered());
+		}
+	}
+	
+	private void lookAnswered() {
+		synchronized (explored) {
+			looksWaiting--;
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/*
+ * This class puts load on a server without any GUI. It opens a number of
+ * connections, each playing as a bot over the normal text protocol, and
+ * times every command from sending it to reading the whole reply. At the
+ * end it prints how many of each command were answered a second and how
+ * long the slowest 50%, 1% and 0.1% of them took.
+ *
+ * Each bot follows one behaviour, picked from the mix given:
+ *   walk - moves in random directions, looking around every few moves
+ *   gold - looks for gold, walks to it and picks it up, then heads for
+ *          the exit once it has enough to win
+ *   look - sends nothing but LOOK
+ *   goto - uses GOTO GOLD and GOTO EXIT to do the same as gold
+ * A bot that wins connects again as a new player.
+ *
+ *     java LoadGenerator --host=localhost --port=4004 --clients=1000
+ *         --duration=30 --warmup=5 --mix=walk:60,gold:20,look:20
+ *
+ * --threads=virtual runs the bots on virtual threads where the Java
+ * version has them, --think=ms waits between commands.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadGenerator implements Runnable {
+
+	// Command types, each with its own histogram
+	private final static int HELLO = 0;
+	private final static int MOVE = 1;
+	private final static int PICKUP = 2;
+	private final static int LOOK = 3;
+	private final static int GOTO = 4;
+	private final static String[] COMMAND_NAMES = { "HELLO", "MOVE", "PICKUP", "LOOK", "GOTO" };
+	private final static String[] BEHAVIOURS = { "walk", "gold", "look", "goto" };
+	private final static String DIRECTIONS = "NESW";
+	private final static int LOOK_SIZE = 5;
+
+	private static String host;
+	private static int port;
+	private static long thinkMillis;
+	private static volatile boolean running = true;
+	private static volatile long measureFrom;
+	private static LatencyHistogram[] latencies = new LatencyHistogram[COMMAND_NAMES.length];
+	private static LongAdder answered = new LongAdder();
+	private static AtomicLong errors = new AtomicLong();
+	private static AtomicLong wins = new AtomicLong();
+
+	private String behaviour;
+	private Random rand;
+	private Socket sock;
+	private CommandSender sender;
+	private BufferedReader serverReader;
+	private String[] window = new String[LOOK_SIZE];
+	private int goldNeeded;
+	private boolean won;
+	// Set once the bot has stood on an exit with enough gold, the server then sends WINNER after the next LOOK
+	private boolean winDue;
+
+	public LoadGenerator(String behaviour, long seed) {
+		this.behaviour = behaviour;
+		this.rand = new Random(seed);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		host = getOption(args, "host", "localhost");
+		port = Integer.parseInt(getOption(args, "port", "4004"));
+		int clients = Integer.parseInt(getOption(args, "clients", "100"));
+		long duration = Long.parseLong(getOption(args, "duration", "30"));
+		long warmup = Long.parseLong(getOption(args, "warmup", "5"));
+		thinkMillis = Long.parseLong(getOption(args, "think", "0"));
+		int[] mix = parseMix(getOption(args, "mix", "walk:60,gold:20,look:20"));
+
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+
+		// Times from the warm up are thrown away
+		long start = System.nanoTime();
+		measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+
+		ExecutorService bots = getOption(args, "threads", "thread").equals("virtual")
+				? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+		Random rand = new Random();
+		for (int i = 0; i < clients; i++) {
+			bots.execute(new LoadGenerator(pickBehaviour(mix, rand), rand.nextLong()));
+		}
+
+		long lastCount = 0;
+		for (long second = 1; second <= warmup + duration; second++) {
+			pause((start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+			long count = answered.sum();
+			System.out.println(second + "s: " + (count - lastCount) + " commands/s, " + errors.get() + " errors, "
+					+ wins.get() + " wins" + (second <= warmup ? " (warming up)" : ""));
+			lastCount = count;
+		}
+
+		running = false;
+		bots.shutdown();
+		bots.awaitTermination(5, TimeUnit.SECONDS);
+		printSummary(duration);
+		System.exit(0);
+	}
+
+	/*
+	 * This method turns a mix such as "walk:60,gold:40" into a weight for each behaviour.
+	 */
+	private static int[] parseMix(String mix) {
+
+		int[] weights = new int[BEHAVIOURS.length];
+		for (String part : mix.split(",")) {
+			String[] pair = part.split(":");
+			int behaviour = Arrays.asList(BEHAVIOURS).indexOf(pair[0].trim());
+			if (behaviour == -1 || pair.length != 2) {
+				System.err.println("Unknown behaviour " + part + ", expected one of walk, gold, look and goto");
+				System.exit(-1);
+			}
+			weights[behaviour] = Integer.parseInt(pair[1].trim());
+		}
+		return weights;
+	}
+
+	private static String pickBehaviour(int[] weights, Random rand) {
+
+		int total = 0;
+		for (int weight : weights) {
+			total += weight;
+		}
+		int pick = rand.nextInt(Math.max(1, total));
+		for (int i = 0; i < weights.length; i++) {
+			pick -= weights[i];
+			if (pick < 0) {
+				return BEHAVIOURS[i];
+			}
+		}
+		return BEHAVIOURS[0];
+	}
+
+	/*
+	 * This method prints the throughput and latency of every command type that was sent.
+	 */
+	private static void printSummary(long duration) {
+
+		System.out.println();
+		System.out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "command", "count", "per sec", "p50 us", "p99 us",
+				"p999 us", "max us");
+		for (int i = 0; i < latencies.length; i++) {
+			LatencyHistogram latency = latencies[i];
+			if (latency.getCount() == 0) {
+				continue;
+			}
+			System.out.printf("%-8s %10d %10d %10.1f %10.1f %10.1f %10.1f%n", COMMAND_NAMES[i], latency.getCount(),
+					latency.getCount() / Math.max(1, duration), latency.percentile(0.5) / 1000.0,
+					latency.percentile(0.99) / 1000.0, latency.percentile(0.999) / 1000.0,
+					latency.getMax() / 1000.0);
+		}
+		System.out.println(errors.get() + " connection errors, " + wins.get() + " wins");
+	}
+
+	/*
+	 * This is the bot. It plays until the test ends, connecting again
+	 * whenever it wins. If the connection fails or the server closes it for
+	 * any other reason it is counted as an error and tried again shortly.
+	 */
+	public void run() {
+
+		while (running) {
+			won = false;
+			winDue = false;
+			try {
+				sock = new Socket(host, port);
+				sock.setTcpNoDelay(true);
+				sender = new CommandSender(sock);
+				serverReader = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.US_ASCII));
+				play();
+
+			} catch (IOException e) {
+				// Counted below like any other lost connection
+			} finally {
+				close();
+			}
+
+			if (running && !won) {
+				errors.incrementAndGet();
+				pause(100);
+			}
+		}
+	}
+
+	/*
+	 * This method plays one game following the bot's behaviour. It returns
+	 * once the bot has won or the test is over.
+	 */
+	private void play() throws IOException {
+
+		String gold = send(HELLO, "HELLO");
+		if (gold == null) {
+			return;
+		}
+		goldNeeded = Integer.parseInt(gold.substring(6).trim());
+
+		boolean playing = true;
+		while (running && playing) {
+			switch (behaviour) {
+			case "walk":
+				playing = walk();
+				break;
+			case "gold":
+				playing = seek();
+				break;
+			case "look":
+				playing = send(LOOK, "LOOK") != null;
+				break;
+			default:
+				playing = travel();
+				break;
+			}
+			pause(thinkMillis);
+		}
+	}
+
+	/*
+	 * This method makes a random move and looks around one time in four.
+	 */
+	private boolean walk() throws IOException {
+
+		if (rand.nextInt(4) == 0) {
+			return send(LOOK, "LOOK") != null;
+		}
+		return send(MOVE, "MOVE " + DIRECTIONS.charAt(rand.nextInt(4))) != null;
+	}
+
+	/*
+	 * This method looks around and takes one step towards the nearest gold,
+	 * or the nearest exit once there is enough gold, picking up gold once
+	 * it has been stepped on. With nothing in sight it moves at random.
+	 */
+	private boolean seek() throws IOException {
+
+		if (send(LOOK, "LOOK") == null) {
+			return false;
+		}
+
+		char target = goldNeeded > 0 ? 'G' : 'E';
+		int middle = LOOK_SIZE / 2;
+		int bestRow = -1;
+		int bestColumn = -1;
+		for (int row = 0; row < LOOK_SIZE; row++) {
+			for (int column = 0; column < LOOK_SIZE; column++) {
+				if (window[row].charAt(column) == target && (bestRow == -1
+						|| distance(row, column) < distance(bestRow, bestColumn))) {
+					bestRow = row;
+					bestColumn = column;
+				}
+			}
+		}
+
+		char direction;
+		if (bestRow == -1) {
+			direction = DIRECTIONS.charAt(rand.nextInt(4));
+		} else if (bestRow != middle && window[bestRow < middle ? middle - 1 : middle + 1].charAt(middle) != '#') {
+			direction = bestRow < middle ? 'N' : 'S';
+		} else if (bestColumn != middle) {
+			direction = bestColumn < middle ? 'W' : 'E';
+		} else {
+			direction = DIRECTIONS.charAt(rand.nextInt(4));
+		}
+
+		String moved = send(MOVE, "MOVE " + direction);
+		if (moved == null) {
+			return false;
+		}
+		if (target == 'E' && moved.equals("SUCCESS") && distance(bestRow, bestColumn) == 1) {
+			winDue = true;
+		}
+		if (target == 'G' && moved.equals("SUCCESS") && distance(bestRow, bestColumn) == 1) {
+			return pickup();
+		}
+		return true;
+	}
+
+	/*
+	 * This method walks to the nearest gold with GOTO and picks it up, or
+	 * walks to the nearest exit once there is enough gold and looks to win.
+	 */
+	private boolean travel() throws IOException {
+
+		if (goldNeeded > 0) {
+			String arrived = send(GOTO, "GOTO GOLD");
+			if (arrived == null) {
+				return false;
+			}
+			if (arrived.equals("SUCCESS")) {
+				return pickup();
+			}
+			return send(MOVE, "MOVE " + DIRECTIONS.charAt(rand.nextInt(4))) != null;
+		}
+
+		String arrived = send(GOTO, "GOTO EXIT");
+		if (arrived != null && arrived.equals("SUCCESS")) {
+			winDue = true;
+		}
+		return arrived != null && send(LOOK, "LOOK") != null;
+	}
+
+	private boolean pickup() throws IOException {
+
+		String picked = send(PICKUP, "PICKUP");
+		if (picked != null && picked.startsWith("SUCCESS")) {
+			goldNeeded--;
+		}
+		return picked != null;
+	}
+
+	private static int distance(int row, int column) {
+		return Math.abs(row - LOOK_SIZE / 2) + Math.abs(column - LOOK_SIZE / 2);
+	}
+
+	/*
+	 * This method sends a command, reads the whole reply and times it. It
+	 * returns the first line of the reply, or null if the player has won or
+	 * the server has closed the connection. A look window is kept in window.
+	 */
+	private String send(int type, String command) throws IOException {
+
+		long start = System.nanoTime();
+		sender.send(command);
+		String reply = serverReader.readLine();
+		if (reply == null) {
+			return null;
+		}
+		// A WINNER that wasn't read with the look it followed starts what looks like the next reply
+		if (reply.equals("WINNER")) {
+			return winner();
+		}
+
+		if (type == LOOK) {
+			window[0] = reply;
+			for (int i = 1; i < LOOK_SIZE; i++) {
+				window[i] = serverReader.readLine();
+			}
+			// The window ends with an empty line, a win is sent straight after it in the same write.
+			// When a win is known to be due it is waited for, otherwise it is only read if it has arrived.
+			if (serverReader.readLine() == null || window[LOOK_SIZE - 1] == null) {
+				return null;
+			}
+			if ((winDue || serverReader.ready()) && "WINNER".equals(serverReader.readLine())) {
+				return winner();
+			}
+		} else if (type == PICKUP && reply.startsWith("FAIL")) {
+			serverReader.readLine();
+		}
+
+		long end = System.nanoTime();
+		answered.increment();
+		if (start >= measureFrom) {
+			latencies[type].record(end - start);
+		}
+		return reply;
+	}
+
+	private String winner() {
+		wins.incrementAndGet();
+		won = true;
+		return null;
+	}
+
+	private void close() {
+
+		try {
+			if (sock != null) {
+				sock.close();
+			}
+		} catch (IOException e) {
+			// The connection is being thrown away anyway
+		}
+	}
+
+	private static void pause(long millis) {
+
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * This method creates a virtual thread per task executor, looked up by
+	 * reflection so the tool still runs on Java versions without them.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not available, using a thread per bot.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private static String getOption(String[] args, String name, String defaultValue) {
+
+		for (String arg : args) {
+			if (arg.startsWith("--" + name + "=")) {
+				return arg.substring(name.length() + 3);
+			}
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * This class is the client's side of the connection to the server. Sending
+ * a command returns a future for its reply straight away, so nothing ever
+ * waits for the server unless it wants to. The server answers commands in
+ * the order they were sent, so every reply read completes the oldest
+ * command still waiting for one and is read according to what that command
+ * was, rather than by guessing from the text of the reply.
+ *
+ * The replies are read by the connection's own thread. Look windows are
+ * the one kind of reply that can also arrive without being asked for, once
+ * the client has subscribed, so every look window is handed to the listener
+ * and only completes a command if that command was a LOOK. The listener is
+ * told which it was, as a window that answers a LOOK was seen after every
+ * command before it. Patches to the
+ * look window are applied here, so the listener always gets whole windows.
+ * Binary replies are turned back into the same lines as the text replies.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ServerConnection implements Runnable {
+
+	/*
+	 * A listener is told about everything that doesn't answer a command.
+	 * It is called on the connection's reading thread. Asked is true if the
+	 * window is also the reply to a LOOK.
+	 */
+	public interface Listener {
+		void lookChanged(String[] window, boolean asked);
+		void won();
+		void disconnected();
+	}
+
+	/*
+	 * A command that has been sent and is waiting for its reply.
+	 */
+	private static class Pending {
+		String word;
+		CompletableFuture<String[]> reply = new CompletableFuture<String[]>();
+
+		Pending(String command) {
+			String trimmed = command.trim();
+			int space = trimmed.indexOf(' ');
+			word = (space == -1 ? trimmed : trimmed.substring(0, space)).toUpperCase();
+		}
+	}
+
+	private final static String NOTHING_TO_PICK_UP = "There is nothing to pick up...";
+
+	private CommandSender sender;
+	private DataInputStream serverReader;
+	private Listener listener;
+	private ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+	private volatile boolean closed = false;
+	private boolean binary = false;
+	private String[] lookWindow = null;
+
+	public ServerConnection(Socket sock, Listener listener) throws IOException {
+		this.sender = new CommandSender(sock);
+		this.serverReader = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		this.listener = listener;
+	}
+
+	/*
+	 * This method sends a command and returns the future for its reply.
+	 */
+	public CompletableFuture<String[]> send(String command) {
+		return send(new String[] { command }).get(0);
+	}
+
+	/*
+	 * This method sends any number of commands in one write and returns the
+	 * futures for their replies in the same order. Once "HELLO BINARY" has
+	 * been sent nothing else should be sent until its reply has arrived, as
+	 * that reply decides which protocol the next commands are sent in.
+	 */
+	public synchronized List<CompletableFuture<String[]>> send(String... commands) {
+
+		List<CompletableFuture<String[]>> replies = new ArrayList<CompletableFuture<String[]>>(commands.length);
+		List<Pending> sent = new ArrayList<Pending>(commands.length);
+		for (String text : commands) {
+			Pending command = new Pending(text);
+			sent.add(command);
+			replies.add(command.reply);
+		}
+
+		// Queued before they are written, so a fast reply always finds its command
+		pending.addAll(sent);
+		try {
+			if (closed) {
+				throw new IOException("Connection closed");
+			}
+			sender.send(commands);
+		} catch (IOException e) {
+			for (Pending command : sent) {
+				pending.remove(command);
+				command.reply.completeExceptionally(e);
+			}
+		}
+		return replies;
+	}
+
+	/*
+	 * This is the reading thread. It reads replies until the connection is
+	 * closed and then fails every command still waiting for a reply.
+	 */
+	public void run() {
+
+		boolean won = false;
+		try {
+			while (!won) {
+				won = binary ? readFrame() : readText();
+			}
+		} catch (IOException e) {
+			// The server has terminated the connection
+		}
+
+		// Locked so nothing can be sent between closing and failing what is left
+		synchronized (this) {
+			closed = true;
+			Pending command;
+			while ((command = pending.poll()) != null) {
+				command.reply.completeExceptionally(new EOFException("Connection closed"));
+			}
+		}
+
+		if (won) {
+			listener.won();
+		} else {
+			listener.disconnected();
+		}
+	}
+
+	/*
+	 * This method reads one text reply and returns true if it said the player has won.
+	 */
+	private boolean readText() throws IOException {
+
+		String line = readLine();
+		if (line.isEmpty()) {
+			// The blank line that ends a look window
+			return false;
+		}
+		if (line.equals("WINNER")) {
+			return true;
+		}
+
+		if (line.equals("UNCHANGED")) {
+			lookReply(lookWindow, false);
+		} else if (line.startsWith("DELTA ")) {
+			lookReply(BinaryProtocol.applyPatch(lookWindow, line), true);
+		} else if (line.startsWith("X")) {
+			// Every look window starts with a corner, the first row says how big it is
+			String[] window = new String[line.length()];
+			window[0] = line;
+			for (int i = 1; i < window.length; i++) {
+				window[i] = readLine();
+			}
+			lookReply(window, true);
+		} else {
+			Pending command = pending.poll();
+			if (command == null) {
+				return false;
+			}
+
+			if (command.word.equals("HELLO") && line.endsWith(" BINARY")) {
+				// Everything is binary from here on in both directions
+				binary = true;
+				sender.setBinary(true);
+				line = line.substring(0, line.length() - 7);
+			}
+			if (command.word.equals("PICKUP") && line.equals("FAIL")) {
+				command.reply.complete(new String[] { line, readLine() });
+			} else {
+				command.reply.complete(new String[] { line });
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * This method reads one binary frame and returns true if it said the player has won.
+	 */
+	private boolean readFrame() throws IOException {
+
+		switch (serverReader.readByte()) {
+
+		case BinaryProtocol.LOOK_WINDOW:
+			lookReply(BinaryProtocol.unpackLook(readBytes(BinaryProtocol.LOOK_BYTES)), true);
+			break;
+
+		case BinaryProtocol.LOOK_WIDE:
+			int size = serverReader.readUnsignedByte();
+			lookReply(BinaryProtocol.unpackLook(readBytes((size * size + 1) / 2), size), true);
+			break;
+
+		case BinaryProtocol.LOOK_PATCH:
+			int shift = serverReader.readUnsignedByte();
+			byte[] changes = readBytes(serverReader.readUnsignedByte());
+			lookReply(BinaryProtocol.applyPatch(lookWindow, (shift >> 4) - 8, (shift & 0xF) - 8, changes), true);
+			break;
+
+		case BinaryProtocol.LOOK_UNCHANGED:
+			lookReply(lookWindow, false);
+			break;
+
+		case BinaryProtocol.GOLD:
+			reply("GOLD: " + serverReader.readInt());
+			break;
+
+		case BinaryProtocol.PICKED_UP:
+			reply("SUCCESS, GOLD COINS: " + serverReader.readInt());
+			break;
+
+		case BinaryProtocol.SUCCESS:
+			reply("SUCCESS");
+			break;
+
+		case BinaryProtocol.FAIL:
+			reply("FAIL");
+			break;
+
+		case BinaryProtocol.SUBSCRIBED:
+			reply("SUBSCRIBED");
+			break;
+
+		case BinaryProtocol.WINNER:
+			return true;
+
+		default:
+			throw new IOException("Unknown reply from the server");
+		}
+		return false;
+	}
+
+	/*
+	 * This method completes the oldest command with a one line reply,
+	 * adding the second line a failed PICKUP has in text.
+	 */
+	private void reply(String line) {
+
+		Pending command = pending.poll();
+		if (command == null) {
+			return;
+		}
+		if (command.word.equals("PICKUP") && line.equals("FAIL")) {
+			command.reply.complete(new String[] { line, NOTHING_TO_PICK_UP });
+		} else {
+			command.reply.complete(new String[] { line });
+		}
+	}
+
+	/*
+	 * This method hands a look window to the listener if it has changed and
+	 * completes the oldest command with it if that command was a LOOK.
+	 * Otherwise the window was sent without being asked for.
+	 */
+	private void lookReply(String[] window, boolean changed) {
+
+		lookWindow = window;
+		Pending command = pending.peek();
+		boolean asked = command != null && command.word.equals("LOOK");
+		if (changed) {
+			listener.lookChanged(window, asked);
+		}
+
+		if (asked) {
+			pending.poll();
+			command.reply.complete(window);
+		}
+	}
+
+	private byte[] readBytes(int count) throws IOException {
+		byte[] bytes = new byte[count];
+		serverReader.readFully(bytes);
+		return bytes;
+	}
+
+	/*
+	 * This method reads one line of text from the server a byte at a time, so
+	 * that no binary frames after it are taken out of the stream.
+	 */
+	private String readLine() throws IOException {
+
+		StringBuilder line = new StringBuilder();
+		int input = serverReader.read();
+
+		while (input != '\n') {
+			if (input == -1) {
+				throw new EOFException("Connection closed");
+			}
+			line.append((char) input);
+			input = serverReader.read();
+		}
+
+		// Ignore the carriage return at the end of the line
+		if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+			line.setLength(line.length() - 1);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * This class describes the compact binary protocol that a client can switch
+ * to by sending "HELLO BINARY". The server answers that HELLO in text with
+ * " BINARY" added to the gold line and from then on both sides only send
+ * binary frames. A server that doesn't know about the binary protocol just
+ * answers the HELLO normally, so the client knows to keep using text.
+ *
+ * Commands are a one byte opcode, MOVE is followed by one byte holding the
+ * direction character. Replies are a one byte code, GOLD and PICKED_UP are
+ * followed by a four byte count and LOOK_WINDOW by the 25 tiles of the look
+ * window packed as four bit tile codes, two to a byte.
+ *
+ * DELTA_LOOK asks for the look window as a change to the last one the
+ * connection was sent. The reply is a single LOOK_UNCHANGED byte if nothing
+ * has changed, or LOOK_PATCH followed by a byte holding how far the window
+ * has moved, a byte holding the number of changed tiles and one byte per
+ * changed tile with its place in the window in the top five bits and its
+ * tile code in the bottom three. The corners and the player in the middle
+ * never move with the window so they are never sent. If the patch wouldn't
+ * be any smaller the whole window is sent as usual.
+ *
+ * SUBSCRIBE is answered with SUBSCRIBED, after which the server sends a
+ * look window whenever something in it changes, as if the client had
+ * asked for it.
+ *
+ * VIEW is followed by one byte holding the size of look window the player
+ * wants. Windows other than five by five are sent as LOOK_WIDE, followed
+ * by a byte holding the size and then the packed tiles.
+ *
+ * GOTO is followed by three bytes holding the row and column of the tile
+ * to walk to, twelve bits each. GOTO_NEAREST is followed by one byte, 'E'
+ * to walk to the nearest exit or 'G' to the nearest gold. Both are answered
+ * with SUCCESS once the player is there or FAIL if they couldn't get there.
+ *
+ * The same file is used by the client and the server.
+ */
+
+import java.nio.ByteBuffer;
+
+public class BinaryProtocol {
+
+	// Commands sent by the client
+	final static byte HELLO = 1;
+	final static byte MOVE = 2;
+	final static byte PICKUP = 3;
+	final static byte LOOK = 4;
+	final static byte DELTA_LOOK = 5;
+	final static byte SUBSCRIBE = 6;
+	final static byte VIEW = 7;
+	final static byte GOTO = 8;
+	final static byte GOTO_NEAREST = 9;
+
+	// Replies sent by the server
+	final static byte SUCCESS = 16;
+	final static byte FAIL = 17;
+	final static byte GOLD = 18;
+	final static byte PICKED_UP = 19;
+	final static byte LOOK_WINDOW = 20;
+	final static byte WINNER = 21;
+	final static byte LOOK_UNCHANGED = 22;
+	final static byte LOOK_PATCH = 23;
+	final static byte SUBSCRIBED = 24;
+	final static byte LOOK_WIDE = 25;
+
+	// Tile characters in the order of their tile codes
+	final static String TILES = "#.GEPX";
+	final static int LOOK_SIZE = 5;
+	final static int MAX_LOOK_SIZE = 31;
+	final static int LOOK_BYTES = (LOOK_SIZE * LOOK_SIZE + 1) / 2;
+	final static int MAX_REPLY_BYTES = 2 + (MAX_LOOK_SIZE * MAX_LOOK_SIZE + 1) / 2 + 1;
+	final static int MAX_PATCH_TILES = LOOK_BYTES - 3;
+	final static int MAX_GOTO_COORDINATE = 4095;
+
+	/*
+	 * This method turns a text command such as "MOVE N" into its binary frame.
+	 * Commands that aren't understood are sent as a zero byte, which the
+	 * server replies to with FAIL just like an unknown text command.
+	 */
+	static byte[] encodeCommand(String command) {
+
+		String[] parts = command.trim().toUpperCase().split(" ");
+
+		switch (parts[0]) {
+
+		case "HELLO":
+			return new byte[] {HELLO};
+
+		case "MOVE":
+			if (parts.length == 2 && parts[1].length() == 1) {
+				return new byte[] {MOVE, (byte) parts[1].charAt(0)};
+			}
+			return new byte[] {0};
+
+		case "PICKUP":
+			return new byte[] {PICKUP};
+
+		case "SUBSCRIBE":
+			return new byte[] {SUBSCRIBE};
+
+		case "VIEW":
+			if (parts.length == 2 && parts[1].matches("[0-9]{1,3}") && Integer.parseInt(parts[1]) < 256) {
+				return new byte[] {VIEW, (byte) Integer.parseInt(parts[1])};
+			}
+			return new byte[] {0};
+
+		case "LOOK":
+			if (parts.length == 2 && parts[1].equals("DELTA")) {
+				return new byte[] {DELTA_LOOK};
+			}
+			return new byte[] {LOOK};
+
+		case "GOTO":
+			if (parts.length == 2 && (parts[1].equals("EXIT") || parts[1].equals("GOLD"))) {
+				return new byte[] {GOTO_NEAREST, (byte) parts[1].charAt(0)};
+			}
+			if (parts.length == 3 && parts[1].matches("[0-9]{1,4}") && parts[2].matches("[0-9]{1,4}")) {
+				int y = Integer.parseInt(parts[1]);
+				int x = Integer.parseInt(parts[2]);
+				if (y <= MAX_GOTO_COORDINATE && x <= MAX_GOTO_COORDINATE) {
+					return new byte[] {GOTO, (byte) (y >> 4), (byte) (y << 4 | x >> 8), (byte) x};
+				}
+			}
+			return new byte[] {0};
+
+		default:
+			return new byte[] {0};
+		}
+	}
+
+	/*
+	 * This method returns how many bytes follow the opcode of a command frame.
+	 */
+	static int argumentBytes(int opcode) {
+
+		switch (opcode) {
+		case MOVE:
+		case VIEW:
+		case GOTO_NEAREST:
+			return 1;
+		case GOTO:
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	/*
+	 * This method writes the binary frame for a text reply from the game.
+	 * A reply ending in WINNER is followed by a WINNER frame. The reply is
+	 * read in place so nothing is allocated. Patches to the look window
+	 * arrive as text of the form "DELTA dy dx" followed by the changed tiles,
+	 * each written as its place in the window and then its tile character.
+	 */
+	static void encodeReply(CharSequence reply, ByteBuffer out) {
+
+		int length = reply.length();
+		boolean winner = regionMatches(reply, length - 7, "\nWINNER");
+		if (winner) {
+			length -= 7;
+		}
+
+		if (regionMatches(reply, 0, "GOLD: ")) {
+			out.put(GOLD);
+			out.putInt(parseCount(reply, 6, length));
+		} else if (regionMatches(reply, 0, "SUCCESS, GOLD COINS: ")) {
+			out.put(PICKED_UP);
+			out.putInt(parseCount(reply, 21, length));
+		} else if (regionMatches(reply, 0, "SUCCESS")) {
+			out.put(SUCCESS);
+		} else if (regionMatches(reply, 0, "FAIL")) {
+			out.put(FAIL);
+		} else if (regionMatches(reply, 0, "SUBSCRIBED")) {
+			out.put(SUBSCRIBED);
+		} else if (regionMatches(reply, 0, "UNCHANGED")) {
+			out.put(LOOK_UNCHANGED);
+		} else if (regionMatches(reply, 0, "DELTA ")) {
+			packPatch(reply, length, out);
+		} else {
+			packLook(reply, length, out);
+		}
+
+		if (winner) {
+			out.put(WINNER);
+		}
+	}
+
+	/*
+	 * This method checks if the reply holds the given text at the given offset.
+	 */
+	private static boolean regionMatches(CharSequence reply, int offset, String text) {
+
+		if (offset < 0 || offset + text.length() > reply.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (reply.charAt(offset + i) != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * This method reads the number that starts at the given offset of a reply.
+	 */
+	private static int parseCount(CharSequence reply, int offset, int length) {
+
+		int count = 0;
+		for (int i = offset; i < length && Character.isDigit(reply.charAt(i)); i++) {
+			count = count * 10 + (reply.charAt(i) - '0');
+		}
+		return count;
+	}
+
+	/*
+	 * This method packs the tiles of a text look window into four bit
+	 * tile codes, skipping the line breaks. The size of the window is the
+	 * length of its first line.
+	 */
+	private static void packLook(CharSequence look, int length, ByteBuffer out) {
+
+		int size = 0;
+		while (size < length && look.charAt(size) != '\n') {
+			size++;
+		}
+
+		if (size == LOOK_SIZE) {
+			out.put(LOOK_WINDOW);
+		} else {
+			out.put(LOOK_WIDE);
+			out.put((byte) size);
+		}
+		int packed = 0;
+		int tiles = 0;
+
+		for (int i = 0; i < length && tiles < size * size; i++) {
+			int code = TILES.indexOf(look.charAt(i));
+			if (code == -1) {
+				continue;
+			}
+
+			// Even tiles go in the high half of the byte and odd tiles in the low half
+			if (tiles % 2 == 0) {
+				packed = code << 4;
+			} else {
+				out.put((byte) (packed | code));
+			}
+			tiles++;
+		}
+
+		if (tiles % 2 == 1) {
+			out.put((byte) packed);
+		}
+	}
+
+	/*
+	 * This method packs a text patch to the look window. The shift goes in one
+	 * byte as two four bit numbers offset by eight, then comes the number of
+	 * changed tiles and a byte for each one.
+	 */
+	private static void packPatch(CharSequence patch, int length, ByteBuffer out) {
+
+		out.put(LOOK_PATCH);
+		int i = 6;
+		int shiftY = parseSigned(patch, i);
+		i = endOfNumber(patch, i) + 1;
+		int shiftX = parseSigned(patch, i);
+		i = endOfNumber(patch, i);
+		out.put((byte) ((shiftY + 8) << 4 | (shiftX + 8)));
+
+		// The count is filled in once the tiles have been written
+		int countIndex = out.position();
+		out.put((byte) 0);
+		int count = 0;
+
+		// Each tile is a space, its place in the window and its tile character
+		while (i + 1 < length) {
+			int tile = parseSigned(patch, i + 1);
+			i = endOfNumber(patch, i + 1);
+			out.put((byte) (tile << 3 | TILES.indexOf(patch.charAt(i))));
+			i++;
+			count++;
+		}
+		out.put(countIndex, (byte) count);
+	}
+
+	/*
+	 * This method reads the number that starts at the given offset of a reply,
+	 * which may have a minus sign in front of it.
+	 */
+	private static int parseSigned(CharSequence reply, int offset) {
+
+		if (reply.charAt(offset) == '-') {
+			return -parseCount(reply, offset + 1, reply.length());
+		}
+		return parseCount(reply, offset, reply.length());
+	}
+
+	/*
+	 * This method returns the offset just after the number that starts at the given offset.
+	 */
+	private static int endOfNumber(CharSequence reply, int offset) {
+
+		int i = reply.charAt(offset) == '-' ? offset + 1 : offset;
+		while (i < reply.length() && Character.isDigit(reply.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/*
+	 * This method turns a packed look window back into five rows of text.
+	 */
+	static String[] unpackLook(byte[] packed) {
+		return unpackLook(packed, LOOK_SIZE);
+	}
+
+	/*
+	 * This method turns a packed look window of the given size back into rows of text.
+	 */
+	static String[] unpackLook(byte[] packed, int size) {
+
+		String[] rows = new String[size];
+		char[] row = new char[size];
+
+		for (int i = 0; i < size * size; i++) {
+			int code = (i % 2 == 0) ? (packed[i / 2] >> 4) & 0xF : packed[i / 2] & 0xF;
+			row[i % size] = TILES.charAt(code);
+
+			if (i % size == size - 1) {
+				rows[i / size] = new String(row);
+			}
+		}
+		return rows;
+	}
+
+	/*
+	 * This method applies a text patch such as "DELTA 1 0 1# 2G" to the last
+	 * look window and returns the new one.
+	 */
+	static String[] applyPatch(String[] window, String patch) {
+
+		String[] parts = patch.trim().split(" ");
+		byte[] changes = new byte[parts.length - 3];
+
+		for (int i = 3; i < parts.length; i++) {
+			int tile = Integer.parseInt(parts[i].substring(0, parts[i].length() - 1));
+			int code = TILES.indexOf(parts[i].charAt(parts[i].length() - 1));
+			changes[i - 3] = (byte) (tile << 3 | code);
+		}
+		return applyPatch(window, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), changes);
+	}
+
+	/*
+	 * This method returns the tile that is always in the given place of a
+	 * look window, an X in the corners and the player in the middle, or zero
+	 * for places that show the map.
+	 */
+	static char fixedTile(int row, int column) {
+
+		if ((row == 0 || row == LOOK_SIZE - 1) && (column == 0 || column == LOOK_SIZE - 1)) {
+			return 'X';
+		}
+		if (row == LOOK_SIZE / 2 && column == LOOK_SIZE / 2) {
+			return 'P';
+		}
+		return 0;
+	}
+
+	/*
+	 * This method applies a patch to the last look window and returns the new
+	 * one. The old window is moved by the shift, which is how far the player
+	 * has moved, and then the changed tiles are written over it.
+	 */
+	static String[] applyPatch(String[] window, int shiftY, int shiftX, byte[] changes) {
+
+		char[] tiles = new char[LOOK_SIZE * LOOK_SIZE];
+
+		for (int i = 0; i < LOOK_SIZE; i++) {
+			for (int j = 0; j < LOOK_SIZE; j++) {
+				int oldRow = i + shiftY;
+				int oldColumn = j + shiftX;
+
+				// Tiles that have come into view are always in the changes
+				if (fixedTile(i, j) != 0) {
+					tiles[i * LOOK_SIZE + j] = fixedTile(i, j);
+				} else if (oldRow >= 0 && oldRow < LOOK_SIZE && oldColumn >= 0 && oldColumn < LOOK_SIZE) {
+					tiles[i * LOOK_SIZE + j] = window[oldRow].charAt(oldColumn);
+				}
+			}
+		}
+
+		for (byte change : changes) {
+			tiles[(change & 0xFF) >> 3] = TILES.charAt(change & 7);
+		}
+
+		String[] rows = new String[LOOK_SIZE];
+		for (int i = 0; i < LOOK_SIZE; i++) {
+			rows[i] = new String(tiles, i * LOOK_SIZE, LOOK_SIZE);
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * This class is a lock-free version of the game logic. Instead of every
+ * player queueing on one monitor, tiles are claimed in the occupancy grid
+ * and gold is taken off the map with compare and set, so players on
+ * different parts of the map never wait for each other. When two players
+ * race for the same tile or the same gold only one of them succeeds.
+ *
+ * Each player's slot in the player store is only written by the thread
+ * serving that player, so the store is made a fixed size up front and
+ * only joining and leaving take the lock.
+ */
+
+public class ConcurrentGameLogic extends GameLogic {
+
+	/*
+	 * Creates the game logic with room for a fixed number of players.
+	 */
+	public ConcurrentGameLogic(int port, int maxPlayers) {
+		super(port, new PlayerStore(maxPlayers, false));
+	}
+
+	/*
+	 * This method moves the player by claiming the new tile in the occupancy
+	 * grid and only then letting go of the old one, so two players can never
+	 * end up on the same tile.
+	 */
+	@Override
+	public String move(char direction, int player) {
+
+		int oldY = players.getY(player);
+		int oldX = players.getX(player);
+		int newY = oldY;
+		int newX = oldX;
+
+		// Edit player's position based on direction of movement
+		switch (direction) {
+		case 'N':
+			newY -= 1;
+			break;
+		case 'E':
+			newX += 1;
+			break;
+		case 'S':
+			newY += 1;
+			break;
+		case 'W':
+			newX -= 1;
+			break;
+		default:
+			break;
+		}
+
+		// Check to ensure player doesn't move into wall or another player
+		if (gameMap.lookAtTile(newY, newX) == '#' || !occupancy.tryPlace(newY, newX, player)) {
+			return "FAIL";
+		}
+
+		players.setPosition(player, newY, newX);
+		occupancy.release(oldY, oldX, player);
+		updateFreeTile(newY, newX);
+		updateFreeTile(oldY, oldX);
+		events.publish(GameEvents.MOVE, player, newY, newX, oldY, oldX, players.getGold(player));
+		views.moved(player, oldY, oldX, newY, newX);
+		return "SUCCESS";
+	}
+
+	/*
+	 * This method picks up gold by swapping the gold tile for a floor tile.
+	 * If two players try to take the same gold only one swap succeeds.
+	 */
+	@Override
+	public void pickup(int player, StringBuilder answer) {
+
+		if (gameMap.compareAndReplaceTile(players.getY(player), players.getX(player), 'G', '.')) {
+			pathFinder.goldRemoved(players.getY(player), players.getX(player));
+			views.tileChanged(players.getY(player), players.getX(player));
+			int gold = players.addGold(player);
+			events.publish(GameEvents.PICKUP, player, players.getY(player), players.getX(player), gold);
+			answer.append("SUCCESS, GOLD COINS: ").append(gold);
+			return;
+		}
+
+		answer.append("FAIL" + "\n" + "There is nothing to pick up...");
+	}
+
+	/*
+	 * This method frees the player's tile straight away and only locks
+	 * to give the player's ID back to the store.
+	 */
+	@Override
+	public void erasePlayer(int player) {
+
+		int y = players.getY(player);
+		int x = players.getX(player);
+		occupancy.release(y, x, player);
+		updateFreeTile(y, x);
+		views.unsubscribe(player);
+
+		// Published before the ID is freed so it comes before the next holder's spawn
+		events.publish(GameEvents.DESPAWN, player, y, x, players.getGold(player));
+		synchronized (this) {
+			players.remove(player);
+		}
+		views.tileChanged(y, x);
+	}
+
+	/*
+	 * This method gives a new player an ID and spawns them into the world.
+	 * Only taking the ID needs the lock.
+	 */
+	@Override
+	public int addPlayer() {
+
+		int player;
+		synchronized (this) {
+			player = players.getPlayerCount() < maxPlayers ? players.add() : -1;
+		}
+
+		if (player == -1) {
+			return -1;
+		}
+		if (!setPlayerPosition(player)) {
+			synchronized (this) {
+				players.remove(player);
+			}
+			return -1;
+		}
+		return player;
+	}
+
+	/*
+	 * This method spawns a player on a random free tile. If a moving player
+	 * takes the tile before it can be claimed it is taken off the free list
+	 * and another one is picked. It returns false if there is no free tile.
+	 */
+	@Override
+	public boolean setPlayerPosition(int player) {
+
+		int[] newPlayerPos = pickSpawn();
+		while (newPlayerPos != null && !occupancy.tryPlace(newPlayerPos[0], newPlayerPos[1], player)) {
+			updateFreeTile(newPlayerPos[0], newPlayerPos[1]);
+			newPlayerPos = pickSpawn();
+		}
+		if (newPlayerPos == null) {
+			return false;
+		}
+
+		updateFreeTile(newPlayerPos[0], newPlayerPos[1]);
+		players.setPosition(player, newPlayerPos[0], newPlayerPos[1]);
+		events.publish(GameEvents.SPAWN, player, newPlayerPos[0], newPlayerPos[1], 0);
+		views.tileChanged(newPlayerPos[0], newPlayerPos[1]);
+		return true;
+	}
+
+	/*
+	 * This method checks if the player has won. It only reads the player's
+	 * own state and an exit tile, which never changes, so it needs no lock.
+	 */
+	@Override
+	public boolean checkWin(int player) {
+		return players.getGold(player) >= gameMap.getWin()
+				&& gameMap.lookAtTile(players.getY(player), players.getX(player)) == 'E';
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * This class keeps a list of every tile a player could spawn on, that is
+ * every tile that isn't a wall and that nobody is stood on. Picking a spawn
+ * is one random pick from the list, however crowded or walled in the map
+ * is, and it only fails when there really is no free tile left.
+ *
+ * Each tile is stored as y * width + x. Alongside the list every tile of
+ * the map remembers where it is in the list, so a tile can be taken out by
+ * moving the last tile of the list into its place.
+ *
+ * Tiles aren't told whether they have been taken or freed, they are told
+ * to look at the occupancy grid again. Players moving without the game
+ * lock can change a tile in any order, but whichever update runs last
+ * always sees how the tile really is.
+ *
+ * The map is split into bands of rows, each with its own list and lock,
+ * so players moving in different parts of the map don't wait for each
+ * other. A pick first chooses a band, weighted by how many free tiles it
+ * has, and then a tile from that band's list.
+ */
+
+import java.util.Random;
+
+public class FreeTiles {
+
+	private final static int WALL = -2;
+	private final static int TAKEN = -1;
+	private final static int BANDS = 64;
+
+	private OccupancyGrid occupancy;
+	private int width;
+	private int height;
+	private int rowsPerBand;
+	private Band[] bands;
+	private int[] slots;
+
+	/*
+	 * The free tiles of one band of rows. Slots of tiles in the band are
+	 * positions in its list and are only changed under its lock.
+	 */
+	private static class Band {
+		int[] tiles;
+		volatile int count = 0;
+	}
+
+	/*
+	 * Creates the list by reading every tile of the map once.
+	 */
+	public FreeTiles(Map map, OccupancyGrid occupancy) {
+
+		this.occupancy = occupancy;
+		this.width = map.getMapWidth();
+		this.height = map.getMapHeight();
+		this.slots = new int[width * height];
+		this.rowsPerBand = (height + BANDS - 1) / BANDS;
+		this.bands = new Band[(height + rowsPerBand - 1) / rowsPerBand];
+
+		for (int band = 0; band < bands.length; band++) {
+			int walkable = 0;
+			for (int y = band * rowsPerBand; y < Math.min(height, (band + 1) * rowsPerBand); y++) {
+				for (int x = 0; x < width; x++) {
+					boolean wall = map.lookAtTile(y, x) == '#';
+					slots[y * width + x] = wall ? WALL : TAKEN;
+					walkable += wall ? 0 : 1;
+				}
+			}
+			bands[band] = new Band();
+			bands[band].tiles = new int[Math.max(1, walkable)];
+		}
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				update(y, x);
+			}
+		}
+	}
+
+	/*
+	 * This method puts a tile on the list or takes it off depending on
+	 * whether anyone is stood on it now. It should be called whenever a
+	 * player arrives on or leaves a tile. Only the tile's band is locked.
+	 */
+	public void update(int y, int x) {
+
+		if (y < 0 || x < 0 || y >= height || x >= width || slots[y * width + x] == WALL) {
+			return;
+		}
+
+		int tile = y * width + x;
+		Band band = bands[y / rowsPerBand];
+		synchronized (band) {
+			int slot = slots[tile];
+			boolean free = !occupancy.isOccupied(y, x);
+			if (free && slot == TAKEN) {
+				slots[tile] = band.count;
+				band.tiles[band.count++] = tile;
+			} else if (!free && slot != TAKEN) {
+				int last = band.tiles[--band.count];
+				band.tiles[slot] = last;
+				slots[last] = slot;
+				slots[tile] = TAKEN;
+			}
+		}
+	}
+
+	/*
+	 * This method returns a random free tile as y * width + x, or -1 if
+	 * every tile is taken. The bands' counts are read without their locks,
+	 * so if the chosen band has emptied by the time it is locked the pick
+	 * is simply made again.
+	 */
+	public int pick(Random rand) {
+
+		while (true) {
+			int total = 0;
+			for (Band band : bands) {
+				total += band.count;
+			}
+			if (total == 0) {
+				return -1;
+			}
+
+			int chosen = rand.nextInt(total);
+			for (Band band : bands) {
+				int count = band.count;
+				if (chosen >= count) {
+					chosen -= count;
+					continue;
+				}
+				synchronized (band) {
+					if (band.count > 0) {
+						return band.tiles[rand.nextInt(band.count)];
+					}
+				}
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * This class is a stream of everything that happens in the world: players
+ * spawning, moving, picking up gold, winning and leaving. The game
+ * publishes each event into a ring buffer made once up front and any number
+ * of readers, such as the server GUI, work through the events at their own
+ * pace on their own threads.
+ *
+ * The game never waits for a reader. A reader that falls a whole buffer
+ * behind has the events it hadn't read yet written over. It notices, skips
+ * ahead and counts the events it lost, so it knows to look at the game
+ * again rather than trust the events it has seen.
+ *
+ * Publishing claims the next sequence number and writes the event into that
+ * slot. The slot's sequence is marked while it is being written and set to
+ * the event's sequence once it is done. A reader copies the event out and
+ * checks the sequence is still the same afterwards, so it never uses an
+ * event that was half written over.
+ */
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class GameEvents {
+
+	public final static int SPAWN = 1;
+	public final static int MOVE = 2;
+	public final static int PICKUP = 3;
+	public final static int WIN = 4;
+	public final static int DESPAWN = 5;
+
+	private final static long WRITING = Long.MIN_VALUE;
+
+	/*
+	 * One event as copied out by a reader. The position is where the player
+	 * is after the event, a MOVE also says where they came from. Gold is
+	 * how much the player is holding.
+	 */
+	public static class Event {
+		public long sequence;
+		public int type;
+		public int player;
+		public int y;
+		public int x;
+		public int fromY;
+		public int fromX;
+		public int gold;
+	}
+
+	private int size;
+	private int mask;
+	private AtomicLongArray sequences;
+	private int[] types;
+	private int[] players;
+	private int[] ys;
+	private int[] xs;
+	private int[] fromYs;
+	private int[] fromXs;
+	private int[] golds;
+	private AtomicLong tail = new AtomicLong();
+	private volatile int readers = 0;
+
+	/*
+	 * Creates a stream that keeps at least the given number of events
+	 * (rounded up to a power of two) for readers that fall behind.
+	 */
+	public GameEvents(int capacity) {
+
+		size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		types = new int[size];
+		players = new int[size];
+		ys = new int[size];
+		xs = new int[size];
+		fromYs = new int[size];
+		fromXs = new int[size];
+		golds = new int[size];
+
+		// Each slot starts out as if the event a whole buffer before it had been written
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i - size);
+		}
+	}
+
+	public void publish(int type, int player, int y, int x, int gold) {
+		publish(type, player, y, x, y, x, gold);
+	}
+
+	/*
+	 * This method adds an event to the stream. Nothing is written if nobody
+	 * is reading, so a server without a GUI doesn't pay for the stream.
+	 */
+	public void publish(int type, int player, int y, int x, int fromY, int fromX, int gold) {
+
+		if (readers == 0) {
+			return;
+		}
+
+		long sequence = tail.getAndIncrement();
+		int slot = (int) (sequence & mask);
+
+		// Only wait for whoever is still writing the slot's previous event, never for a reader
+		while (sequences.get(slot) != sequence - size) {
+			Thread.onSpinWait();
+		}
+		sequences.set(slot, WRITING);
+		VarHandle.storeStoreFence();
+
+		types[slot] = type;
+		players[slot] = player;
+		ys[slot] = y;
+		xs[slot] = x;
+		fromYs[slot] = fromY;
+		fromXs[slot] = fromX;
+		golds[slot] = gold;
+		sequences.set(slot, sequence);
+	}
+
+	/*
+	 * This method creates a reader that starts with the next event published.
+	 */
+	public synchronized Reader newReader() {
+		readers++;
+		return new Reader(tail.get());
+	}
+
+	/*
+	 * A reader's place in the stream. Each reader should only be used by one thread.
+	 */
+	public class Reader {
+
+		private long next;
+		private long dropped = 0;
+
+		private Reader(long next) {
+			this.next = next;
+		}
+
+		/*
+		 * This method copies the next event into the given event and returns
+		 * true, or returns false if no new event has been published yet.
+		 */
+		public boolean poll(Event event) {
+
+			while (true) {
+				int slot = (int) (next & mask);
+				long published = sequences.get(slot);
+				if (published < next) {
+					return false;
+				}
+
+				if (published == next) {
+					event.type = types[slot];
+					event.player = players[slot];
+					event.y = ys[slot];
+					event.x = xs[slot];
+					event.fromY = fromYs[slot];
+					event.fromX = fromXs[slot];
+					event.gold = golds[slot];
+					VarHandle.loadLoadFence();
+
+					if (sequences.get(slot) == next) {
+						event.sequence = next++;
+						return true;
+					}
+				}
+
+				// Written over before it could be read, skip to half a buffer behind the newest event
+				long skipTo = Math.max(next + 1, tail.get() - size / 2);
+				dropped += skipTo - next;
+				next = skipTo;
+			}
+		}
+
+		/*
+		 * This method returns how many events this reader has missed by falling behind.
+		 */
+		public long getDropped() {
+			return dropped;
+		}
+	}
+}
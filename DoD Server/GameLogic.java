@@ -1,245 +1,441 @@
-/*
- * This class handles all the logic of the game. It handles
- * spawning, moving, winning, picking up gold, collision
- * detection and despawning players.
- */
-
-import java.util.Random;
-
-public class GameLogic {
-	
-	ServerGUI GUI = null;
-	private Map gameMap = null;
-	private int[] playersPositions = new int[20];
-	private int[] collectedGold = new int[10];
-	private int playerCount = 0;
-	private int port;
-	private boolean active;
-	
-	/*
-	 * Instantiates the map class and stores the port number
-	 */
-	public GameLogic(int port) {
-		this.port = port;
-		gameMap = new Map();
-	}
-	
-	/*
-	 * This method reads in a map and instantiates the ServerGUI class.
-	 */
-	public ServerGUI setMap(String mapName) {
-		char[][] map;
-		map = gameMap.readMap(mapName);
-		active = true;
-		GUI = new ServerGUI(map, port);
-		return GUI;
-	}
-	
-
-	/*
-	 * This method returns how much gold is still required to win.
-	 */
-	public String hello(int player) {
-		if (gameMap.getWin() < collectedGold[player]) {
-			return "GOLD: 0";
-		}
-		return "GOLD: " + (gameMap.getWin() - collectedGold[player]);
-	}
-
-	/*
-	 * By proving a character direction from the set of {N,S,E,W} the gamelogic
-	 * checks if this location can be visited by the player. If it is true, the
-	 * player is moved to the new location. It also updates the server GUI in a new thread
-	 * to show the player's new position.
-	 */
-	public synchronized String move(char direction, int player) {
-
-		int[] newPosition = {playersPositions[player * 2] ,playersPositions[player * 2 + 1]};
-		final int[] oldPosition = {playersPositions[player * 2] ,playersPositions[player * 2 + 1]};
-	
-		// Edit player's position based on direction of movement
-		switch (direction) {
-		case 'N':
-			newPosition[0] -= 1;
-			break;
-		case 'E':
-			newPosition[1] += 1;
-			break;
-		case 'S':
-			newPosition[0] += 1;
-			break;
-		case 'W':
-			newPosition[1] -= 1;
-			break;
-		default:
-			break;
-		}
-		
-		final int[] finalNewPosition = newPosition;
-		
-		// Check to ensure player doesn't move into wall or another player
-		if (gameMap.lookAtTile(newPosition[0], newPosition[1]) != '#' && !isOccupied(newPosition)) {
-			
-			playersPositions[player * 2] = newPosition[0];
-			playersPositions[player * 2 + 1] = newPosition[1];
-			
-			// Use a new thread to move the player on the server GUI
-			javax.swing.SwingUtilities.invokeLater(new Runnable() {
-				public void run() {
-					GUI.movePlayer(oldPosition, finalNewPosition);
-					return;
-				}
-			});
-			
-			return "SUCCESS";
-		} else {
-			return "FAIL";
-		}
-	}
-	
-	/*
-	 * This method returns the tiles of the dungeon that are around the player's location
-	 * and is called when the look command is used.
-	 */
-	public String look(int player) {
-		String output = "";
-		
-		// Get look window from map class
-		char[][] lookReply = gameMap.lookWindow(playersPositions[player * 2], playersPositions[player * 2 + 1], 5,
-				playersPositions, playerCount);
-		
-		// Concatenate the look window into one big string
-		for (int i = 0; i < lookReply[0].length; i++) {
-
-			for (int j = 0; j < lookReply[0].length; j++) {
-				output += lookReply[j][i];
-			}
-			output += "\n";
-		}
-		return output;
-	}
-	
-	/*
-	 * This method is called when a player tries to pickup. It is
-	 * synchronized so that the gold array isn't access while being edited.
-	 */
-	public synchronized String pickup(int player) {
-		
-		// Check if the player is stood on gold
-		if (gameMap.lookAtTile(playersPositions[player * 2], playersPositions[player * 2 + 1]) == 'G') {
-			collectedGold[player]++;
-			gameMap.replaceTile(playersPositions[player * 2], playersPositions[player * 2 + 1], '.');
-			return "SUCCESS, GOLD COINS: " + collectedGold[player];
-		}
-
-		return "FAIL" + "\n" + "There is nothing to pick up...";
-	}
-
-	/*
-	 * This code erases a player from the server when they either win, 
-	 * disconnect or quit. It also updates the server GUI in a new thread
-	 * so that the player no longer shows up.
-	 */
-	public synchronized void erasePlayer(int player) {
-		
-		// Reset the player's variables
-		final int[] playerPosition = {playersPositions[player * 2], playersPositions[player * 2 + 1]};
-		playersPositions[player * 2] = -1;
-		playersPositions[player * 2 + 1] = -1;
-		collectedGold[player] = 0;
-		
-		// Use a new thread to erase the player from the server GUI
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				GUI.erasePlayer(playerPosition);
-				return;
-			}
-		});
-	}
-
-	/*
-	 * This method controls the spawning of players to ensure players
-	 * don't spawn at exactly the same time it is synchronized. It also updates
-	 * the ServerGUI to show newly spawned players.
-	 */
-	public synchronized void setPlayerPosition(int player) {
-		
-		playerCount = player;
-		final int[] newPlayerPos = pickSpawn();
-		playersPositions[playerCount * 2] = newPlayerPos[0];
-		playersPositions[playerCount * 2 + 1] = newPlayerPos[1];
-		
-		// Create a new thread to handle the updating of the server GUI
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				GUI.placePlayer(newPlayerPos);
-				return;
-			}
-		});
-		
-	}
-	
-	/*
-	 * This method finds a random position for the player to spawn on the map.
-	 */
-	private synchronized int[] pickSpawn() {
-		int[] pos = new int[2];
-		Random rand = new Random();
-		
-		pos[0] = rand.nextInt(gameMap.getMapHeight());
-		pos[1] = rand.nextInt(gameMap.getMapWidth());
-		int counter = 0;
-		
-		// Ensure the tile isn't occupied by a player or a wall
-		while (gameMap.lookAtTile(pos[0], pos[1]) == '#' || isOccupied(pos)) {
-			pos[0] = rand.nextInt(gameMap.getMapHeight());
-			pos[1] = rand.nextInt(gameMap.getMapWidth());
-			counter++;
-			// If all tiles are occupied then return null
-			if (counter > 99999) {
-				return null;
-			}
-		}
-
-		return pos;
-	}
-
-	/*
-	 * This method checks to see if a tile is occupied by a player, it
-	 * is synchronized so player positions can't change when checking a tile.
-	 */
-	private synchronized boolean isOccupied(int[] newPosition) {
-
-		for (int i = 0; i <= playerCount; i++) {
-			
-			if (playersPositions[i * 2] == newPosition[0] && (playersPositions[i * 2 + 1] == newPosition[1])) {
-				return true;
-			}
-		}
-
-		return false;
-	}
-	
-	
-	/*
-	 * This method checks if the player collected enough GOLD to win and is on the exit tile.
-	 */
-	public synchronized boolean checkWin(int player) {
-		if (collectedGold[player] >= gameMap.getWin()
-				&& gameMap.lookAtTile(playersPositions[player * 2], playersPositions[player * 2 + 1]) == 'E') {
-			return true;
-		}
-		else {
-			return false;
-		}
-	}
-	
-	
-	/*
-	 * This method returns if the server is currently running
-	 */
-	public boolean isRunning() {
-		return active;
-	}
-
-}
+/*
+ * This class handles all the logic of the game. It handles
+ * spawning, moving, winning, picking up gold, collision
+ * detection and despawning players. Everything that happens is
+ * published as GameEvents, which is how the server GUI finds out.
+ * The commands that take the lock time how long they waited for it in the
+ * ServerMetrics, which the server also times its commands with.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class GameLogic {
+	
+	ServerGUI GUI = null;
+	protected GameEvents events = new GameEvents(EVENT_BUFFER_SIZE);
+	protected ServerMetrics metrics = new ServerMetrics();
+	protected Map gameMap = null;
+	protected PlayerStore players;
+	protected OccupancyGrid occupancy = null;
+	protected ViewSubscriptions views = null;
+	protected volatile FreeTiles freeTiles = null;
+	protected PathFinder pathFinder = null;
+	private Random rand = new Random();
+	protected int maxPlayers = Integer.MAX_VALUE;
+	private int port;
+	private final static int EVENT_BUFFER_SIZE = 1 << 16;
+	private boolean active;
+	
+	/*
+	 * Instantiates the map class and stores the port number
+	 */
+	public GameLogic(int port) {
+		this(port, new PlayerStore());
+	}
+	
+	/*
+	 * Constructor which lets a subclass choose how players are stored.
+	 */
+	protected GameLogic(int port, PlayerStore players) {
+		this.port = port;
+		this.players = players;
+		gameMap = new Map();
+	}
+	
+	/*
+	 * This method swaps the map for one that stores its tiles differently,
+	 * such as a PackedMap. It must be called before the map is read in.
+	 */
+	public void useMap(Map gameMap) {
+		this.gameMap = gameMap;
+	}
+	
+	/*
+	 * This method limits how many players can be in the game at once,
+	 * addPlayer turns away anyone over the limit.
+	 */
+	public void setMaxPlayers(int maxPlayers) {
+		this.maxPlayers = maxPlayers;
+	}
+	
+	/*
+	 * This method reads in a map, creates an empty occupancy grid and view
+	 * subscriptions the same size as it and instantiates the ServerGUI class.
+	 * Maps that are too big to draw or couldn't be read get no GUI.
+	 */
+	public ServerGUI setMap(String mapName) {
+		return setMap(mapName, true);
+	}
+	
+	/*
+	 * This method reads in a map the same way, only creating the ServerGUI
+	 * if showGUI is true, so the game can be run where there is no screen.
+	 */
+	public ServerGUI setMap(String mapName, boolean showGUI) {
+		boolean loaded = gameMap.readMap(mapName);
+		occupancy = new OccupancyGrid(gameMap.getMapHeight(), gameMap.getMapWidth(), Map.PADDING);
+		views = new ViewSubscriptions(gameMap.getMapHeight(), gameMap.getMapWidth(), Map.MAX_VIEW / 2);
+		pathFinder = new PathFinder(gameMap);
+		active = true;
+		if (showGUI && loaded && gameMap.isDrawable()) {
+			GUI = new ServerGUI(gameMap, port, this);
+		}
+		return GUI;
+	}
+	
+
+	/*
+	 * This method adds how much gold is still required to win to the answer.
+	 */
+	public void hello(int player, StringBuilder answer) {
+		if (gameMap.getWin() < players.getGold(player)) {
+			answer.append("GOLD: 0");
+			return;
+		}
+		answer.append("GOLD: ").append(gameMap.getWin() - players.getGold(player));
+	}
+
+	/*
+	 * By proving a character direction from the set of {N,S,E,W} the gamelogic
+	 * checks if this location can be visited by the player. If it is true, the
+	 * player is moved to the new location. It also publishes the move so the
+	 * server GUI can show the player's new position.
+	 */
+	public String move(char direction, int player) {
+		long waitStart = metrics.startTimer();
+		synchronized (this) {
+			metrics.lockAcquired(waitStart);
+			return moveLocked(direction, player);
+		}
+	}
+	
+	private String moveLocked(char direction, int player) {
+
+		int oldY = players.getY(player);
+		int oldX = players.getX(player);
+		int newY = oldY;
+		int newX = oldX;
+	
+		// Edit player's position based on direction of movement
+		switch (direction) {
+		case 'N':
+			newY -= 1;
+			break;
+		case 'E':
+			newX += 1;
+			break;
+		case 'S':
+			newY += 1;
+			break;
+		case 'W':
+			newX -= 1;
+			break;
+		default:
+			break;
+		}
+		
+		// Check to ensure player doesn't move into wall or another player
+		if (gameMap.lookAtTile(newY, newX) != '#' && !isOccupied(newY, newX)) {
+			
+			players.setPosition(player, newY, newX);
+			occupancy.clear(oldY, oldX);
+			occupancy.place(newY, newX, player);
+			updateFreeTile(oldY, oldX);
+			updateFreeTile(newY, newX);
+			events.publish(GameEvents.MOVE, player, newY, newX, oldY, oldX, players.getGold(player));
+			views.moved(player, oldY, oldX, newY, newX);
+			
+			return "SUCCESS";
+		} else {
+			return "FAIL";
+		}
+	}
+	
+	/*
+	 * This method adds the tiles of the dungeon that are around the player's location
+	 * to the answer and is called when the look command is used.
+	 */
+	public void look(int player, StringBuilder answer) {
+		look(player, Map.MIN_VIEW, answer);
+	}
+	
+	/*
+	 * This method adds a look window of the given size, which must be odd
+	 * and between Map.MIN_VIEW and Map.MAX_VIEW, to the answer.
+	 */
+	public void look(int player, int size, StringBuilder answer) {
+		
+		// Get look window from map class
+		gameMap.lookWindow(players.getY(player), players.getX(player), size, occupancy, answer);
+	}
+	
+	/*
+	 * This method walks the player to the given tile along the shortest way
+	 * around the walls, making each move for them. It fails if there is no
+	 * way there or another player is in the way, leaving the player as far
+	 * along the path as they got.
+	 */
+	public String goTo(int player, int y, int x) {
+		
+		String path = pathFinder.findPath(players.getY(player), players.getX(player), y, x);
+		if (path == null) {
+			return "FAIL";
+		}
+		
+		for (int i = 0; i < path.length(); i++) {
+			if (!move(path.charAt(i), player).equals("SUCCESS")) {
+				return "FAIL";
+			}
+		}
+		return "SUCCESS";
+	}
+	
+	/*
+	 * This method walks the player to the nearest tile of the given kind,
+	 * 'E' for an exit or 'G' for gold, one move closer at a time. It fails
+	 * if there is none the player can reach or every way closer is blocked.
+	 */
+	public String goToNearest(int player, char tile) {
+		
+		while (true) {
+			int y = players.getY(player);
+			int x = players.getX(player);
+			int distance = pathFinder.distanceTo(tile, y, x);
+			if (distance == 0) {
+				return "SUCCESS";
+			}
+			if (distance == PathFinder.UNREACHABLE) {
+				return "FAIL";
+			}
+			
+			char direction = pathFinder.nextStep(tile, y, x, occupancy);
+			if (direction == 0 || !move(direction, player).equals("SUCCESS")) {
+				return "FAIL";
+			}
+		}
+	}
+	
+	/*
+	 * This method is called when a player tries to pickup. It is
+	 * synchronized so that the gold array isn't access while being edited.
+	 */
+	public void pickup(int player, StringBuilder answer) {
+		long waitStart = metrics.startTimer();
+		synchronized (this) {
+			metrics.lockAcquired(waitStart);
+			pickupLocked(player, answer);
+		}
+	}
+	
+	private void pickupLocked(int player, StringBuilder answer) {
+		
+		// Check if the player is stood on gold
+		if (gameMap.lookAtTile(players.getY(player), players.getX(player)) == 'G') {
+			int gold = players.addGold(player);
+			gameMap.replaceTile(players.getY(player), players.getX(player), '.');
+			pathFinder.goldRemoved(players.getY(player), players.getX(player));
+			views.tileChanged(players.getY(player), players.getX(player));
+			events.publish(GameEvents.PICKUP, player, players.getY(player), players.getX(player), gold);
+			answer.append("SUCCESS, GOLD COINS: ").append(gold);
+			return;
+		}
+
+		answer.append("FAIL" + "\n" + "There is nothing to pick up...");
+	}
+
+	/*
+	 * This code erases a player from the server when they either win, 
+	 * disconnect or quit. It also publishes that the player has gone
+	 * so that they no longer show up on the server GUI. The player's ID is
+	 * freed so it can be given to the next player to join.
+	 */
+	public synchronized void erasePlayer(int player) {
+		
+		// Reset the player's variables
+		int y = players.getY(player);
+		int x = players.getX(player);
+		occupancy.clear(y, x);
+		updateFreeTile(y, x);
+		views.unsubscribe(player);
+		events.publish(GameEvents.DESPAWN, player, y, x, players.getGold(player));
+		players.remove(player);
+		views.tileChanged(y, x);
+	}
+	
+	/*
+	 * This method erases a player that has won, publishing the win first.
+	 */
+	public void declareWinner(int player) {
+		events.publish(GameEvents.WIN, player, players.getY(player), players.getX(player), players.getGold(player));
+		erasePlayer(player);
+	}
+
+	/*
+	 * This method gives a new player an ID and spawns them into the world.
+	 * It returns -1 if there is no room for another player or no free
+	 * tile to spawn them on.
+	 */
+	public synchronized int addPlayer() {
+		
+		if (players.getPlayerCount() >= maxPlayers) {
+			return -1;
+		}
+		int player = players.add();
+		if (player == -1) {
+			return -1;
+		}
+		if (!setPlayerPosition(player)) {
+			players.remove(player);
+			return -1;
+		}
+		return player;
+	}
+	
+	/*
+	 * This method controls the spawning of players to ensure players
+	 * don't spawn at exactly the same time it is synchronized. It also publishes
+	 * the spawn so the ServerGUI shows newly spawned players. It returns false if
+	 * there is nowhere free to spawn.
+	 */
+	public synchronized boolean setPlayerPosition(int player) {
+		
+		int[] newPlayerPos = pickSpawn();
+		if (newPlayerPos == null) {
+			return false;
+		}
+		players.setPosition(player, newPlayerPos[0], newPlayerPos[1]);
+		occupancy.place(newPlayerPos[0], newPlayerPos[1], player);
+		updateFreeTile(newPlayerPos[0], newPlayerPos[1]);
+		events.publish(GameEvents.SPAWN, player, newPlayerPos[0], newPlayerPos[1], 0);
+		views.tileChanged(newPlayerPos[0], newPlayerPos[1]);
+		return true;
+	}
+	
+	/*
+	 * This method picks a random free tile for the player to spawn on, or
+	 * returns null if every tile is a wall or taken. The list of free tiles
+	 * is made the first time someone spawns, so big maps still load quickly.
+	 */
+	protected synchronized int[] pickSpawn() {
+		
+		if (freeTiles == null) {
+			freeTiles = new FreeTiles(gameMap, occupancy);
+		}
+		
+		int tile = freeTiles.pick(rand);
+		if (tile == -1) {
+			return null;
+		}
+		return new int[] { tile / gameMap.getMapWidth(), tile % gameMap.getMapWidth() };
+	}
+	
+	/*
+	 * This method tells the list of free tiles that a player has arrived on
+	 * or left a tile. Nobody can move before the first spawn makes the list.
+	 */
+	protected void updateFreeTile(int y, int x) {
+		if (freeTiles != null) {
+			freeTiles.update(y, x);
+		}
+	}
+
+	/*
+	 * This method checks to see if a tile is occupied by a player, it
+	 * is synchronized so player positions can't change when checking a tile.
+	 */
+	synchronized boolean isOccupied(int y, int x) {
+		return occupancy.isOccupied(y, x);
+	}
+	
+	
+	/*
+	 * This method checks if the player collected enough GOLD to win and is on the exit tile.
+	 */
+	public boolean checkWin(int player) {
+		long waitStart = metrics.startTimer();
+		synchronized (this) {
+			metrics.lockAcquired(waitStart);
+			return checkWinLocked(player);
+		}
+	}
+	
+	private boolean checkWinLocked(int player) {
+		if (players.getGold(player) >= gameMap.getWin()
+				&& gameMap.lookAtTile(players.getY(player), players.getX(player)) == 'E') {
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+	
+	
+	/*
+	 * This method returns what the server measures about itself.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/*
+	 * This method returns the stream of everything that happens in the game.
+	 */
+	public GameEvents getEvents() {
+		return events;
+	}
+	
+	/*
+	 * This method returns every player in the game as their ID, y and x
+	 * one after the other, for a reader of the events that has fallen behind
+	 * and needs to start again from where everyone is now.
+	 */
+	public synchronized int[] getPlayerPositions() {
+		
+		int[] positions = new int[players.getPlayerCount() * 3];
+		int count = 0;
+		for (int player = 0; player < players.getLimit() && count < positions.length; player++) {
+			if (players.isActive(player) && players.getY(player) >= 0) {
+				positions[count++] = player;
+				positions[count++] = players.getY(player);
+				positions[count++] = players.getX(player);
+			}
+		}
+		return Arrays.copyOf(positions, count);
+	}
+	
+	/*
+	 * This method starts telling the listener whenever something changes in
+	 * the player's look window of the given size, until the player leaves the game.
+	 */
+	public void subscribe(int player, int size, ViewSubscriptions.Listener listener) {
+		views.subscribe(player, players.getY(player), players.getX(player), size / 2, listener);
+	}
+	
+	/*
+	 * These methods return where a player is stood. Only the thread serving
+	 * the player moves them, so it can read its own player's position without a lock.
+	 */
+	public int getPlayerY(int player) {
+		return players.getY(player);
+	}
+	
+	public int getPlayerX(int player) {
+		return players.getX(player);
+	}
+	
+	/*
+	 * This method returns how many players are currently in the game.
+	 */
+	public synchronized int getPlayerCount() {
+		return players.getPlayerCount();
+	}
+	
+	/*
+	 * This method returns if the server is currently running
+	 */
+	public boolean isRunning() {
+		return active;
+	}
+
+}
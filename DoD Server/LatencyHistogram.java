@@ -0,0 +1,129 @@
+/*
+ * This class counts how long something took in buckets, so percentiles can
+ * be read off without keeping every time. Times below 64 nanoseconds get a
+ * bucket each and above that every doubling of time is split into 32
+ * buckets, so a percentile is never more than about three percent out
+ * however long the times get. Any number of threads can record at once.
+ * The same file is used by the client and the server.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+	private final static int SUB_BITS = 5;
+	private final static int SUB_BUCKETS = 1 << SUB_BITS;
+	private final static int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+	private final static int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	/*
+	 * This method counts one time in nanoseconds.
+	 */
+	public void record(long nanos) {
+
+		nanos = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(nanos));
+		total.incrementAndGet();
+
+		long currentMax = max.get();
+		while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	/*
+	 * This method returns which bucket a time is counted in.
+	 */
+	private static int bucket(long nanos) {
+
+		if (nanos < LINEAR_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exponent - SUB_BITS;
+		return LINEAR_BUCKETS + (exponent - SUB_BITS - 1) * SUB_BUCKETS + (int) (nanos >>> shift) - SUB_BUCKETS;
+	}
+
+	/*
+	 * This method returns the longest time that is counted in a bucket.
+	 */
+	private static long bucketEnd(int bucket) {
+
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BITS + 1;
+		long top = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	/*
+	 * This method returns the time that the given fraction of times, such
+	 * as 0.99, were no longer than, or zero if nothing has been recorded.
+	 */
+	public long percentile(double fraction) {
+
+		long count = total.get();
+		if (count == 0) {
+			return 0;
+		}
+
+		long wanted = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= wanted) {
+				return Math.min(bucketEnd(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/*
+	 * This method adds every time counted by another histogram to this one,
+	 * so histograms recorded on different threads can be read as one.
+	 */
+	public void add(LatencyHistogram other) {
+
+		long added = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+				added += count;
+			}
+		}
+		total.addAndGet(added);
+
+		long otherMax = other.max.get();
+		long currentMax = max.get();
+		while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * This method forgets every time recorded so far.
+	 */
+	public void reset() {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		max.set(0);
+	}
+}
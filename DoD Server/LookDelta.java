@@ -0,0 +1,141 @@
+/*
+ * This class remembers the last look window a connection was sent so that
+ * the next one can be sent as a change to it. After a one step move only
+ * the row or column that has come into view is new, and if the player is
+ * stood still most of the time nothing has changed at all. A connection
+ * only gets one of these once it first asks for a delta look. Patches
+ * are only made for the usual five by five window.
+ */
+
+public class LookDelta {
+
+	private final static int SIZE = BinaryProtocol.LOOK_SIZE;
+
+	private char[] lastWindow = new char[SIZE * SIZE];
+	private char[] window = new char[SIZE * SIZE];
+	private int lastY;
+	private int lastX;
+	private boolean remembered = false;
+
+	/*
+	 * This method takes the look window the game has just added to the reply
+	 * from the given start, for a player stood at the given position, and
+	 * remembers it. If a delta was asked for the window is replaced by
+	 * UNCHANGED or by a DELTA patch to the last window, unless the patch
+	 * wouldn't be any smaller than the window itself when sent as binary
+	 * frames or as text, whichever the client uses.
+	 */
+	void update(StringBuilder reply, int start, int y, int x, boolean delta, boolean binary) {
+
+		// Bigger windows are always sent whole
+		if (reply.indexOf("\n", start) - start != SIZE) {
+			remembered = false;
+			return;
+		}
+
+		// Read the tiles of the new window, skipping the line breaks
+		int tiles = 0;
+		for (int i = start; i < reply.length() && tiles < window.length; i++) {
+			if (reply.charAt(i) != '\n') {
+				window[tiles++] = reply.charAt(i);
+			}
+		}
+
+		int shiftY = y - lastY;
+		int shiftX = x - lastX;
+
+		if (delta && remembered && Math.abs(shiftY) < SIZE && Math.abs(shiftX) < SIZE
+				&& patchIsSmaller(shiftY, shiftX, binary, reply.length() - start)) {
+			reply.setLength(start);
+			writePatch(reply, shiftY, shiftX);
+		}
+
+		// The new window becomes the one the next patch is made against
+		char[] swap = lastWindow;
+		lastWindow = window;
+		window = swap;
+		lastY = y;
+		lastX = x;
+		remembered = true;
+	}
+
+	/*
+	 * This method returns the tile the client will already have in the given
+	 * place once it has moved its last window by the shift, or zero if that
+	 * place has just come into view. The corners and the middle are always
+	 * the same so the client fills them in itself.
+	 */
+	private char shiftedTile(int row, int column, int shiftY, int shiftX) {
+
+		int oldRow = row + shiftY;
+		int oldColumn = column + shiftX;
+
+		if (BinaryProtocol.fixedTile(row, column) != 0) {
+			return BinaryProtocol.fixedTile(row, column);
+		}
+		if (oldRow < 0 || oldRow >= SIZE || oldColumn < 0 || oldColumn >= SIZE) {
+			return 0;
+		}
+		return lastWindow[oldRow * SIZE + oldColumn];
+	}
+
+	/*
+	 * This method counts the tiles the client can't work out from the shift alone.
+	 */
+	private int countChanges(int shiftY, int shiftX) {
+
+		int changes = 0;
+		for (int i = 0; i < window.length; i++) {
+			if (shiftedTile(i / SIZE, i % SIZE, shiftY, shiftX) != window[i]) {
+				changes++;
+			}
+		}
+		return changes;
+	}
+
+	/*
+	 * This method returns true if the patch would be smaller than the window.
+	 * A binary patch takes a byte a tile, a text one takes a space, the place
+	 * and the tile for each, so text patches only pay off for fewer tiles.
+	 */
+	private boolean patchIsSmaller(int shiftY, int shiftX, boolean binary, int windowLength) {
+
+		if (binary) {
+			return countChanges(shiftY, shiftX) <= BinaryProtocol.MAX_PATCH_TILES;
+		}
+
+		int length = "DELTA ".length() + digits(shiftY) + 1 + digits(shiftX);
+		for (int i = 0; i < window.length && length < windowLength; i++) {
+			if (shiftedTile(i / SIZE, i % SIZE, shiftY, shiftX) != window[i]) {
+				length += 2 + digits(i);
+			}
+		}
+		return length < windowLength;
+	}
+
+	/*
+	 * This method returns how many characters a number is written with.
+	 */
+	private static int digits(int number) {
+		return (number < 0 ? 1 : 0) + (Math.abs(number) >= 10 ? 2 : 1);
+	}
+
+	/*
+	 * This method writes the patch as "DELTA dy dx" followed by the place
+	 * and tile character of each changed tile, or UNCHANGED if there's nothing to send.
+	 */
+	private void writePatch(StringBuilder reply, int shiftY, int shiftX) {
+
+		if (shiftY == 0 && shiftX == 0 && countChanges(0, 0) == 0) {
+			reply.append("UNCHANGED");
+			return;
+		}
+
+		reply.append("DELTA ").append(shiftY).append(' ').append(shiftX);
+		for (int i = 0; i < window.length; i++) {
+			if (shiftedTile(i / SIZE, i % SIZE, shiftY, shiftX) != window[i]) {
+				reply.append(' ').append(i).append(window[i]);
+			}
+		}
+	}
+}
@@ -1,270 +1,329 @@
-/*
- * This map class handles all loadgin and validation of the game map.
- * This class also handles creating a look window so a player can
- * see where they are on the map.
- */
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
-import javax.swing.JOptionPane;
-
-public class Map {
-	
-	private char[][] map;
-	private String mapName;
-	private int totalGoldOnMap;
-
-	public Map() {
-		map = null;
-		mapName = "";
-		totalGoldOnMap = -1;
-	}
-
-	
-	/*
-	 * This method reads in a map from a text file and checks that it is valid
-	 */
-	public char[][] readMap(String mapName) {
-		
-		BufferedReader reader = null;
-		
-		// Get the file path for where the program is being run from
-		String mapPath = System.getProperty("user.dir") + "/maps/" + mapName;
-		String defaultMapPath = System.getProperty("user.dir") + "/maps/" + "example_map.txt";
-		
-		try {
-			reader = new BufferedReader(new FileReader(new File(mapPath)));
-		} catch (FileNotFoundException e) {
-			
-			// If the custom map isnt found
-			if (mapName.isEmpty() == false) {
-				showMSG("Map not found the default map will be used.");
-			}
-			
-			// Try to find the example map
-			try {
-				reader = new BufferedReader(new FileReader(new File(defaultMapPath)));
-				
-			} catch (FileNotFoundException e1) {
-				showMSG("No valid map name given and default file example_map.txt not found.");
-				System.exit(-1);
-			}
-		}
-		
-		// Validate the map
-		try {
-			map = loadMap(reader);
-			return map;
-			
-		} catch (IOException e) {
-			showMSG("Map file invalid or wrongly formatted.");
-			System.exit(-1);
-			
-		} finally {
-			
-			try {
-				reader.close();
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		return null;
-	}
-
-	/*
-	 * This method loads a map from a file into array and variables.
-	 * This method also validates the map to check it has all the
-	 * features a map should such as an exit and enough gold.
-	 */
-	private char[][] loadMap(BufferedReader reader) throws IOException {
-
-		boolean error = false;
-		ArrayList<char[]> tempMap = new ArrayList<char[]>();
-		int width = -1;
-		
-		// Read name
-		String in = reader.readLine();
-		if (in.startsWith("name")) {
-			error = setName(in);
-		}
-
-		// Read win criteria
-		in = reader.readLine();
-		if (in.startsWith("win")) {
-			error = setWin(in);
-		}
-		
-		in = reader.readLine();
-		if (in.charAt(0) == '#' && in.length() > 1) {
-			width = in.trim().length();
-		}
-		
-		// Read in all the map's tiles
-		while (in != null && !error) {
-
-			char[] row = new char[in.length()];
-			if (in.length() != width)
-				error = true;
-			
-			// Read a row of the map
-			for (int i = 0; i < in.length(); i++) {
-				row[i] = in.charAt(i);
-			}
-
-			tempMap.add(row);
-
-			in = reader.readLine();
-		}
-		
-		// Ensure there has been no errors
-		if (error) {
-			setName("");
-			setWin("");
-			return null;
-		}
-		
-		// Store map in 2D array
-		char[][] map = new char[tempMap.size()][width];
-
-		for (int i = 0; i < tempMap.size(); i++) {
-			map[i] = tempMap.get(i);
-		}
-		return map;
-	}
-	
-	/*
-	 * This method reads in the win criteria of a map and sotres it.
-	 */
-	private boolean setWin(String in) {
-		
-		// Ensure correct formatting
-		if (!in.startsWith("win "))
-			return true;
-		int win = 0;
-		
-		try {
-			win = Integer.parseInt(in.split(" ")[1].trim());
-			
-		} catch (NumberFormatException n) {
-			showMSG("The map does not contain a valid win criteria.");
-		}
-		
-		// Ensure valid win criteria
-		if (win < 0)
-			return true;
-		this.totalGoldOnMap = win;
-
-		return false;
-	}
-
-	/*
-	 * This method reads in the name of a map
-	 */
-	private boolean setName(String in) {
-		
-		// Check the map name has length > 0 and that it is formatted correctly
-		if (!in.startsWith("name ") && in.length() < 4)
-			return true;
-		String name = in.substring(4).trim();
-
-		if (name.length() < 1)
-			return true;
-
-		this.mapName = name;
-
-		return false;
-	}
-
-
-	/*
-	 * This method raplces a map tile with a different tile
-	 */
-	protected char replaceTile(int y, int x, char tile) {
-		char output = map[y][x];
-		map[y][x] = tile;
-		return output;
-	}
-
-
-	/*
-	 * This method returns the map tile at a given location
-	 */
-	protected char lookAtTile(int y, int x) {
-		
-		// Check the co-ordinates given are valid
-		if (y < 0 || x < 0 || y >= map.length || x >= map[0].length)
-			return '#';
-		char output = map[y][x];
-
-		return output;
-	}
-
-
-	/*
-	 * This method is used to retrieve a map view around a certain location. The
-	 * method is used to get the look window around the player location.
-	 */
-	protected char[][] lookWindow(int y, int x, int radius, int[] playersPositions, int playerCount) {
-		
-		char[][] reply = new char[radius][radius];
-	
-		//Loop for size of the look window (default 5x5)
-		for (int i = 0; i < radius; i++) {
-			for (int j = 0; j < radius; j++) {
-
-				int posX = x + j - radius / 2;
-				int posY = y + i - radius / 2;
-				
-				// Get the look window tiles
-				if (posX >= 0 && posX < getMapWidth() && posY >= 0 && posY < getMapHeight()) {
-					reply[j][i] = map[posY][posX];
-				} else {
-					reply[j][i] = '#';
-				}
-				
-				// Add all players to the look window
-				for (int k = 0; k <= playerCount; k++) {
-					if (posY == playersPositions[k * 2] && posX == playersPositions[k * 2 + 1]) {
-						reply[j][i] = 'P';
-					}
-				}
-
-			}
-		}
-		// Fill Xs in corners of the look window
-		reply[0][0] = 'X';
-		reply[radius - 1][0] = 'X';
-		reply[0][radius - 1] = 'X';
-		reply[radius - 1][radius - 1] = 'X';
-		return reply;
-	}
-	
-	/*
-	 * This method shows error messages to the user.
-	 */
-	private static void showMSG(String errorMSG) {
-		JOptionPane.showMessageDialog(null, errorMSG, null, JOptionPane.WARNING_MESSAGE);
-	}
-	
-	public int getWin() {
-		return totalGoldOnMap;
-	}
-
-	public String getMapName() {
-		return mapName;
-	}
-
-	public int getMapWidth() {
-		return map[0].length;
-	}
-
-	public int getMapHeight() {
-		return map.length;
-	}
-
-}
+/*
+ * This map class handles all loadgin and validation of the game map.
+ * This class also handles creating a look window so a player can
+ * see where they are on the map. The tiles are kept in one flat array
+ * with a border of walls around the map as wide as the biggest look
+ * window reaches, so every look window is a straight copy of each of its
+ * rows and looking just off the edge of the map needs no checks.
+ * The flat array is the only copy of the tiles, the server GUI reads them
+ * through lookAtTile like everything else.
+ * Subclasses such as PackedMap can store the tiles differently by
+ * overriding storeTiles and the methods that read and change tiles.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.swing.JOptionPane;
+
+public class Map {
+	
+	private final static VarHandle TILES = MethodHandles.arrayElementVarHandle(char[].class);
+	final static int MIN_VIEW = 5;
+	final static int MAX_VIEW = 31;
+	final static int PADDING = MAX_VIEW / 2;
+	final static int GUI_TILE_LIMIT = 250000;
+	private char[] tiles;
+	protected int width;
+	protected int height;
+	private int stride;
+	protected String mapName;
+	protected int totalGoldOnMap;
+
+	public Map() {
+		mapName = "";
+		totalGoldOnMap = -1;
+	}
+
+	
+	/*
+	 * This method reads in a map from a text file and checks that it is
+	 * valid. It returns false if the map was wrongly formatted. The rows are
+	 * only kept until they are copied into the tile store.
+	 */
+	public boolean readMap(String mapName) {
+		
+		BufferedReader reader = null;
+		
+		// Get the file path for where the program is being run from
+		String mapPath = System.getProperty("user.dir") + "/maps/" + mapName;
+		String defaultMapPath = System.getProperty("user.dir") + "/maps/" + "example_map.txt";
+		
+		try {
+			reader = new BufferedReader(new FileReader(new File(mapPath)));
+		} catch (FileNotFoundException e) {
+			
+			// If the custom map isnt found
+			if (mapName.isEmpty() == false) {
+				showMSG("Map not found the default map will be used.");
+			}
+			
+			// Try to find the example map
+			try {
+				reader = new BufferedReader(new FileReader(new File(defaultMapPath)));
+				
+			} catch (FileNotFoundException e1) {
+				showMSG("No valid map name given and default file example_map.txt not found.");
+				System.exit(-1);
+			}
+		}
+		
+		// Validate the map
+		try {
+			char[][] map = loadMap(reader);
+			if (map == null) {
+				return false;
+			}
+			height = map.length;
+			width = map[0].length;
+			storeTiles(map);
+			return true;
+			
+		} catch (IOException e) {
+			showMSG("Map file invalid or wrongly formatted.");
+			System.exit(-1);
+			
+		} finally {
+			
+			try {
+				reader.close();
+				
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * This method loads a map from a file into array and variables.
+	 * This method also validates the map to check it has all the
+	 * features a map should such as an exit and enough gold.
+	 */
+	private char[][] loadMap(BufferedReader reader) throws IOException {
+
+		boolean error = false;
+		ArrayList<char[]> tempMap = new ArrayList<char[]>();
+		int width = -1;
+		
+		// Read name
+		String in = reader.readLine();
+		if (in.startsWith("name")) {
+			error = setName(in);
+		}
+
+		// Read win criteria
+		in = reader.readLine();
+		if (in.startsWith("win")) {
+			error = setWin(in);
+		}
+		
+		in = reader.readLine();
+		if (in.charAt(0) == '#' && in.length() > 1) {
+			width = in.trim().length();
+		}
+		
+		// Read in all the map's tiles
+		while (in != null && !error) {
+
+			char[] row = new char[in.length()];
+			if (in.length() != width)
+				error = true;
+			
+			// Read a row of the map
+			for (int i = 0; i < in.length(); i++) {
+				row[i] = in.charAt(i);
+			}
+
+			tempMap.add(row);
+
+			in = reader.readLine();
+		}
+		
+		// Ensure there has been no errors
+		if (error) {
+			setName("");
+			setWin("");
+			return null;
+		}
+		
+		// Store map in 2D array
+		char[][] map = new char[tempMap.size()][width];
+
+		for (int i = 0; i < tempMap.size(); i++) {
+			map[i] = tempMap.get(i);
+		}
+		return map;
+	}
+	
+	/*
+	 * This method copies the map into the flat tile array, surrounded by
+	 * a border of walls PADDING tiles wide.
+	 */
+	protected void storeTiles(char[][] map) {
+		
+		stride = width + 2 * PADDING;
+		tiles = new char[(height + 2 * PADDING) * stride];
+		Arrays.fill(tiles, '#');
+		
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(map[y], 0, tiles, index(y, 0), width);
+		}
+	}
+	
+	/*
+	 * This method returns where a tile is in the flat tile array.
+	 */
+	private int index(int y, int x) {
+		return (y + PADDING) * stride + x + PADDING;
+	}
+	
+	/*
+	 * This method reads in the win criteria of a map and sotres it.
+	 */
+	private boolean setWin(String in) {
+		
+		// Ensure correct formatting
+		if (!in.startsWith("win "))
+			return true;
+		int win = 0;
+		
+		try {
+			win = Integer.parseInt(in.split(" ")[1].trim());
+			
+		} catch (NumberFormatException n) {
+			showMSG("The map does not contain a valid win criteria.");
+		}
+		
+		// Ensure valid win criteria
+		if (win < 0)
+			return true;
+		this.totalGoldOnMap = win;
+
+		return false;
+	}
+
+	/*
+	 * This method reads in the name of a map
+	 */
+	private boolean setName(String in) {
+		
+		// Check the map name has length > 0 and that it is formatted correctly
+		if (!in.startsWith("name ") && in.length() < 4)
+			return true;
+		String name = in.substring(4).trim();
+
+		if (name.length() < 1)
+			return true;
+
+		this.mapName = name;
+
+		return false;
+	}
+
+
+	/*
+	 * This method raplces a map tile with a different tile.
+	 */
+	protected char replaceTile(int y, int x, char tile) {
+		char output = tiles[index(y, x)];
+		tiles[index(y, x)] = tile;
+		return output;
+	}
+
+
+	/*
+	 * This method replaces a map tile only if it still holds the expected tile.
+	 * It returns false if another thread changed the tile first.
+	 */
+	protected boolean compareAndReplaceTile(int y, int x, char expected, char tile) {
+		return TILES.compareAndSet(tiles, index(y, x), expected, tile);
+	}
+
+
+	/*
+	 * This method returns the map tile at a given location. Locations up to
+	 * PADDING tiles off the edge of the map are walls.
+	 */
+	protected char lookAtTile(int y, int x) {
+		return tiles[index(y, x)];
+	}
+
+
+	/*
+	 * This method is used to retrieve a map view around a certain location. The
+	 * method is used to get the look window around the player location, which
+	 * is added to the reply one row per line. Each row is copied straight out
+	 * of the tile array before the players and corners are put on top.
+	 */
+	protected void lookWindow(int y, int x, int size, OccupancyGrid occupancy, StringBuilder reply) {
+	
+		int half = size / 2;
+		int start = reply.length();
+		
+		for (int i = 0; i < size; i++) {
+			int posY = y + i - half;
+			int rowStart = reply.length();
+			reply.append(tiles, index(posY, x - half), size);
+			
+			// Add any player stood on the row to the look window
+			for (int j = 0; j < size; j++) {
+				if (occupancy.isOccupied(posY, x + j - half)) {
+					reply.setCharAt(rowStart + j, 'P');
+				}
+			}
+			reply.append('\n');
+		}
+		
+		// Fill Xs in corners of the look window
+		int lastRow = start + (size - 1) * (size + 1);
+		reply.setCharAt(start, 'X');
+		reply.setCharAt(start + size - 1, 'X');
+		reply.setCharAt(lastRow, 'X');
+		reply.setCharAt(lastRow + size - 1, 'X');
+	}
+	
+	/*
+	 * This method shows error messages to the user, on the console
+	 * if there is no screen to show them on.
+	 */
+	protected static void showMSG(String errorMSG) {
+		if (Boolean.getBoolean("java.awt.headless")) {
+			System.err.println(errorMSG);
+			return;
+		}
+		JOptionPane.showMessageDialog(null, errorMSG, null, JOptionPane.WARNING_MESSAGE);
+	}
+	
+	/*
+	 * This method returns true if a map was loaded and it is small enough for
+	 * the server GUI to draw. The GUI keeps a byte a tile and a panel fifty
+	 * pixels a tile wide, so it is left out for bigger maps whatever stores them.
+	 */
+	public boolean isDrawable() {
+		return width > 0 && (long) height * width <= GUI_TILE_LIMIT;
+	}
+	
+	public int getWin() {
+		return totalGoldOnMap;
+	}
+
+	public String getMapName() {
+		return mapName;
+	}
+
+	public int getMapWidth() {
+		return width;
+	}
+
+	public int getMapHeight() {
+		return height;
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * This class converts a text map from the maps folder into the .dodmap
+ * format played by MappedMap. The text map is read a band of chunk rows at
+ * a time, so maps far bigger than the heap can be converted. Running it
+ * with --verify checks the checksum of an existing .dodmap file instead.
+ *
+ *     java MapConverter maps/big_map.txt [maps/big_map.dodmap]
+ *     java MapConverter --verify maps/big_map.dodmap
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class MapConverter {
+
+	private final static int CHUNK_SIZE = MappedMap.CHUNK_SIZE;
+	private final static int CHECKSUM_POSITION = MappedMap.HEADER_BYTES - 8;
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length == 2 && args[0].equals("--verify")) {
+			verify(args[1]);
+			return;
+		}
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java MapConverter map.txt [map.dodmap]");
+			System.err.println("       java MapConverter --verify map.dodmap");
+			System.exit(-1);
+		}
+
+		String output = args.length == 2 ? args[1] : args[0].replaceFirst("\\.txt$", "") + ".dodmap";
+		long start = System.nanoTime();
+		convert(args[0], output);
+		System.out.println("Wrote " + output + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/*
+	 * This method converts a text map. The header is written last, once the
+	 * height and checksum of the map are known.
+	 */
+	private static void convert(String input, String output) throws IOException {
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(input));
+				RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+
+			String name = reader.readLine();
+			String win = reader.readLine();
+			if (name == null || !name.startsWith("name ") || name.substring(4).trim().isEmpty()
+					|| win == null || !win.startsWith("win ")) {
+				throw new IOException("Map must start with a name and win line");
+			}
+			int gold = Integer.parseInt(win.substring(4).trim());
+
+			String in = reader.readLine();
+			if (in == null || in.length() < 2 || in.charAt(0) != '#') {
+				throw new IOException("Map has no tiles");
+			}
+			int width = in.length();
+			int chunkColumns = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+			file.setLength(0);
+			file.seek(MappedMap.HEADER_BYTES);
+			CRC32 checksum = new CRC32();
+			byte[][] band = new byte[CHUNK_SIZE][chunkColumns * CHUNK_SIZE];
+			byte[] chunk = new byte[CHUNK_SIZE * CHUNK_SIZE];
+			int height = 0;
+
+			while (in != null) {
+
+				// Fill a band of rows, padding them and the band itself with walls
+				int rows = 0;
+				for (byte[] row : band) {
+					Arrays.fill(row, (byte) '#');
+				}
+				while (in != null && rows < CHUNK_SIZE) {
+					if (in.length() != width) {
+						throw new IOException("Row " + (height + rows) + " is not " + width + " tiles wide");
+					}
+					for (int x = 0; x < width; x++) {
+						band[rows][x] = (byte) in.charAt(x);
+					}
+					rows++;
+					in = reader.readLine();
+				}
+				height += rows;
+
+				// Write the band out a chunk at a time
+				for (int column = 0; column < chunkColumns; column++) {
+					for (int y = 0; y < CHUNK_SIZE; y++) {
+						System.arraycopy(band[y], column * CHUNK_SIZE, chunk, y * CHUNK_SIZE, CHUNK_SIZE);
+					}
+					checksum.update(chunk);
+					file.write(chunk);
+				}
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(MappedMap.HEADER_BYTES);
+			byte[] nameBytes = name.substring(4).trim().getBytes(StandardCharsets.UTF_8);
+			header.putInt(MappedMap.MAGIC).putInt(MappedMap.VERSION);
+			header.putShort((short) nameBytes.length).put(nameBytes);
+			header.putInt(gold).putInt(height).putInt(width).putInt(CHUNK_SIZE);
+			header.putLong(CHECKSUM_POSITION, checksum.getValue());
+
+			file.seek(0);
+			file.write(header.array());
+		}
+	}
+
+	/*
+	 * This method checks the tiles of a .dodmap file against the checksum in its header.
+	 */
+	private static void verify(String input) throws IOException {
+
+		try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, MappedMap.HEADER_BYTES);
+			CRC32 checksum = new CRC32();
+			long position = MappedMap.HEADER_BYTES;
+
+			while (position < channel.size()) {
+				long length = Math.min(1 << 24, channel.size() - position);
+				checksum.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+				position += length;
+			}
+
+			if (header.getInt(0) != MappedMap.MAGIC || header.getLong(CHECKSUM_POSITION) != checksum.getValue()) {
+				System.out.println(input + " is corrupt");
+				System.exit(-1);
+			}
+			System.out.println(input + " is valid");
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * This class plays a map straight out of a precompiled .dodmap file made
+ * by MapConverter. Nothing is parsed when the map is loaded, the header is
+ * checked and the file is memory mapped, so the tiles live off the heap and
+ * are only read in from disk when a player first looks at them. The file
+ * is mapped in segments the first time a tile in them is needed. The rest
+ * of the server still keeps about 12 bytes a tile on the heap, for who
+ * stands where and where new players can start, and another 12 once a
+ * player asks to walk to the nearest exit or gold, so the heap rather than
+ * the file limits how big a map can be hosted.
+ *
+ * A .dodmap file starts with a header holding the map's name, win criteria
+ * and size, padded to HEADER_BYTES with a checksum of the tiles in its last
+ * eight bytes. After the header
+ * the map is stored in square chunks of CHUNK_SIZE tiles, one byte a tile,
+ * going across the map a row of chunks at a time. A chunk is one page of
+ * the file, so reading in any tile brings the tiles around it with it.
+ * Chunks on the right and bottom edges are filled out with walls.
+ *
+ * The file is only opened for reading. The first time a tile in a chunk
+ * changes, the chunk is copied into memory and from then on its tiles are
+ * read from and changed in the copy, so gold picked up during a game never
+ * changes the file and only the chunks that changed take up memory.
+ */
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MappedMap extends Map {
+
+	final static int MAGIC = 0x444F444D;
+	final static int VERSION = 1;
+	final static int HEADER_BYTES = 4096;
+	final static int CHUNK_BITS = 6;
+	final static int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private final static int CHUNK_MASK = CHUNK_SIZE - 1;
+	private final static int CHUNK_TILES = CHUNK_SIZE * CHUNK_SIZE;
+	private final static int SEGMENT_BITS = 24;
+	private final static int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+	private final static VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private FileChannel channel;
+	private long dataBytes;
+	private int chunkColumns;
+	private AtomicReferenceArray<ByteBuffer> segments;
+	private AtomicReferenceArray<ByteBuffer> changedChunks;
+
+	/*
+	 * This method checks the header of a .dodmap file and maps it.
+	 */
+	@Override
+	public boolean readMap(String mapName) {
+
+		String mapPath = System.getProperty("user.dir") + "/maps/" + mapName;
+
+		try {
+			channel = FileChannel.open(Paths.get(mapPath), StandardOpenOption.READ);
+			readHeader(channel);
+		} catch (IOException e) {
+			showMSG("Map file invalid or wrongly formatted.");
+			System.exit(-1);
+		}
+		return true;
+	}
+
+	/*
+	 * This method reads the header and checks the file is as long as the
+	 * header says it should be. The tiles themselves aren't read, so the
+	 * checksum is only checked by MapConverter --verify.
+	 */
+	private void readHeader(FileChannel channel) throws IOException {
+
+		if (channel.size() < HEADER_BYTES) {
+			throw new IOException("Not a .dodmap file");
+		}
+
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a .dodmap file");
+		}
+
+		byte[] name = new byte[header.getShort()];
+		header.get(name);
+		mapName = new String(name, StandardCharsets.UTF_8);
+		totalGoldOnMap = header.getInt();
+		height = header.getInt();
+		width = header.getInt();
+
+		if (header.getInt() != CHUNK_SIZE || height < 1 || width < 1 || totalGoldOnMap < 0) {
+			throw new IOException("Unsupported .dodmap file");
+		}
+
+		chunkColumns = (width + CHUNK_MASK) >> CHUNK_BITS;
+		long chunkRows = (height + CHUNK_MASK) >> CHUNK_BITS;
+		dataBytes = chunkRows * chunkColumns << (2 * CHUNK_BITS);
+
+		if (channel.size() != HEADER_BYTES + dataBytes) {
+			throw new IOException("Truncated .dodmap file");
+		}
+		if (chunkRows * chunkColumns > Integer.MAX_VALUE) {
+			throw new IOException("Unsupported .dodmap file");
+		}
+		segments = new AtomicReferenceArray<ByteBuffer>((int) ((dataBytes + SEGMENT_MASK) >> SEGMENT_BITS));
+		changedChunks = new AtomicReferenceArray<ByteBuffer>((int) (chunkRows * chunkColumns));
+	}
+
+	/*
+	 * This method returns where a tile is in the tile data of the file.
+	 */
+	static long offset(int y, int x, int chunkColumns) {
+		long chunk = (long) (y >> CHUNK_BITS) * chunkColumns + (x >> CHUNK_BITS);
+		return chunk << (2 * CHUNK_BITS) | (y & CHUNK_MASK) << CHUNK_BITS | (x & CHUNK_MASK);
+	}
+
+	/*
+	 * This method returns the segment of the file holding the given offset,
+	 * mapping it in if nobody has needed it yet.
+	 */
+	private ByteBuffer segment(long offset) {
+
+		int index = (int) (offset >> SEGMENT_BITS);
+		ByteBuffer segment = segments.get(index);
+		if (segment == null) {
+			segment = mapSegment(index);
+		}
+		return segment;
+	}
+
+	/*
+	 * This method maps in one segment of the file. It is synchronized so two
+	 * threads needing the same segment at once don't both map it.
+	 */
+	private synchronized ByteBuffer mapSegment(int index) {
+
+		ByteBuffer segment = segments.get(index);
+		if (segment != null) {
+			return segment;
+		}
+
+		long start = (long) index << SEGMENT_BITS;
+		try {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + start,
+					Math.min(SEGMENT_MASK + 1, dataBytes - start));
+			segments.set(index, mapped);
+			return mapped;
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not map the map file", e);
+		}
+	}
+
+	/*
+	 * This method returns the buffer holding the tile at the given offset,
+	 * the chunk's copy if it has been changed or else the mapped file.
+	 */
+	private ByteBuffer tiles(long offset) {
+
+		ByteBuffer chunk = changedChunks.get((int) (offset >> (2 * CHUNK_BITS)));
+		return chunk != null ? chunk : segment(offset);
+	}
+
+	/*
+	 * This method returns where a tile is in the buffer tiles() gives for
+	 * it. Only the mapped file is read only.
+	 */
+	private static int position(ByteBuffer tiles, long offset) {
+		return (int) offset & (tiles.isReadOnly() ? SEGMENT_MASK : CHUNK_TILES - 1);
+	}
+
+	/*
+	 * This method returns the copy of the chunk holding the given offset,
+	 * copying it out of the file if it hasn't been changed yet. It is
+	 * synchronized so a chunk is only ever copied once.
+	 */
+	private synchronized ByteBuffer changedChunk(long offset) {
+
+		int index = (int) (offset >> (2 * CHUNK_BITS));
+		ByteBuffer chunk = changedChunks.get(index);
+		if (chunk != null) {
+			return chunk;
+		}
+
+		ByteBuffer file = segment(offset).duplicate();
+		int start = (int) offset & SEGMENT_MASK & ~(CHUNK_TILES - 1);
+		file.limit(start + CHUNK_TILES).position(start);
+		chunk = ByteBuffer.allocateDirect(CHUNK_TILES);
+		chunk.put(file).clear();
+		changedChunks.set(index, chunk);
+		return chunk;
+	}
+
+	/*
+	 * This method returns true if the location is on the map.
+	 */
+	private boolean onMap(int y, int x) {
+		return y >= 0 && x >= 0 && y < height && x < width;
+	}
+
+	@Override
+	protected char lookAtTile(int y, int x) {
+
+		if (!onMap(y, x)) {
+			return '#';
+		}
+		long offset = offset(y, x, chunkColumns);
+		ByteBuffer tiles = tiles(offset);
+		return (char) tiles.get(position(tiles, offset));
+	}
+
+	@Override
+	protected char replaceTile(int y, int x, char tile) {
+
+		long offset = offset(y, x, chunkColumns);
+		ByteBuffer chunk = changedChunk(offset);
+		int position = (int) offset & (CHUNK_TILES - 1);
+		char output = (char) chunk.get(position);
+		chunk.put(position, (byte) tile);
+		return output;
+	}
+
+	/*
+	 * This method swaps the tile's byte with compare and set on the four
+	 * bytes holding it. If a neighbouring tile in the same four bytes changes
+	 * at the same time the swap is simply tried again.
+	 */
+	@Override
+	protected boolean compareAndReplaceTile(int y, int x, char expected, char tile) {
+
+		long offset = offset(y, x, chunkColumns);
+		ByteBuffer chunk = changedChunk(offset);
+		int word = (int) offset & (CHUNK_TILES - 1) & ~3;
+		int shift = (3 - (int) (offset & 3)) << 3;
+
+		while (true) {
+			int current = (int) WORDS.getVolatile(chunk, word);
+			if ((current >>> shift & 0xFF) != expected) {
+				return false;
+			}
+
+			int replaced = current & ~(0xFF << shift) | (tile & 0xFF) << shift;
+			if (WORDS.compareAndSet(chunk, word, current, replaced)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * This method adds the look window around a location to the reply one
+	 * row per line, reading each tile out of the mapped file. Along a row the
+	 * tiles are next to each other until the row runs into the next chunk.
+	 */
+	@Override
+	protected void lookWindow(int y, int x, int size, OccupancyGrid occupancy, StringBuilder reply) {
+
+		int half = size / 2;
+		int start = reply.length();
+
+		for (int i = 0; i < size; i++) {
+			int posY = y + i - half;
+			ByteBuffer segment = null;
+			int offset = 0;
+
+			for (int j = 0; j < size; j++) {
+				int posX = x + j - half;
+
+				if (!onMap(posY, posX)) {
+					reply.append('#');
+					segment = null;
+					continue;
+				}
+				if (segment == null || (posX & CHUNK_MASK) == 0) {
+					long fileOffset = offset(posY, posX, chunkColumns);
+					segment = tiles(fileOffset);
+					offset = position(segment, fileOffset);
+				} else {
+					offset++;
+				}
+
+				if (occupancy.isOccupied(posY, posX)) {
+					reply.append('P');
+				} else {
+					reply.append((char) segment.get(offset));
+				}
+			}
+			reply.append('\n');
+		}
+
+		// Fill Xs in corners of the look window
+		int lastRow = start + (size - 1) * (size + 1);
+		reply.setCharAt(start, 'X');
+		reply.setCharAt(start + size - 1, 'X');
+		reply.setCharAt(lastRow, 'X');
+		reply.setCharAt(lastRow + size - 1, 'X');
+	}
+}
@@ -0,0 +1,445 @@
+/*
+ * This class is the non-blocking alternative to giving every client its
+ * own thread. The accepting thread hands new connections to a small fixed
+ * pool of event loops, each of which owns a selector and decodes the
+ * HELLO/MOVE/PICKUP/LOOK lines straight out of byte buffers before passing
+ * them to the game logic. An idle player only costs a few buffers.
+ * If a tick engine is given the lines are queued on it instead and the
+ * replies are written out when the game thread hands them back. Clients
+ * that switch to the binary protocol have their frames decoded instead.
+ * The views of subscribed players are sent by the loop that owns the
+ * connection, the same way as the replies from the game thread.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+public class NioServer implements Runnable {
+
+	private ServerSocketChannel serverChannel;
+	private GameLogic logic;
+	private EventLoop[] loops;
+	private int maxConnections;
+	private final static int READ_BUFFER_SIZE = 1024;
+	private final static int WRITE_BUFFER_SIZE = 1024;
+	private final static int INCOMPLETE = -2;
+
+	/*
+	 * Constructor which creates the event loops but doesn't start them yet.
+	 * The tick engine is null when commands should be applied straight away.
+	 */
+	public NioServer(ServerSocketChannel serverChannel, GameLogic logic, TickEngine tickEngine, int loopCount,
+			int maxConnections) throws IOException {
+		this.serverChannel = serverChannel;
+		this.logic = logic;
+		this.maxConnections = maxConnections;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(tickEngine, logic.getMetrics());
+		}
+	}
+
+	/*
+	 * This method starts the event loops and then accepts clients on the calling
+	 * thread, handing each new connection to the event loops in turn.
+	 */
+	public void run() {
+
+		for (int i = 0; i < loops.length; i++) {
+			Thread loopThread = new Thread(loops[i], "NioServer-loop-" + i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+		}
+
+		int nextLoop = 0;
+
+		try {
+			// Loop while the server is running
+			while (logic.isRunning()) {
+				SocketChannel channel = serverChannel.accept();
+
+				// Turn the client away if the server is full
+				if (logic.getPlayerCount() >= maxConnections) {
+					channel.close();
+					continue;
+				}
+
+				channel.configureBlocking(false);
+				loops[nextLoop].register(channel, new Server(logic));
+				nextLoop = (nextLoop + 1) % loops.length;
+			}
+			serverChannel.close();
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * An event loop owns one selector and every connection registered with it.
+	 * Connections are only ever touched by their own loop's thread. Ready
+	 * connections are handed straight to the loop by the selector rather
+	 * than through the selected key set, which saves an iterator per select.
+	 */
+	private static class EventLoop implements Runnable, Consumer<SelectionKey> {
+
+		private Selector selector;
+		private TickEngine tickEngine;
+		private ServerMetrics metrics;
+		private ConcurrentLinkedQueue<Connection> newConnections = new ConcurrentLinkedQueue<Connection>();
+		private ConcurrentLinkedQueue<Connection> repliedConnections = new ConcurrentLinkedQueue<Connection>();
+
+		EventLoop(TickEngine tickEngine, ServerMetrics metrics) throws IOException {
+			this.tickEngine = tickEngine;
+			this.metrics = metrics;
+			selector = Selector.open();
+		}
+
+		/*
+		 * This method queues a connection for the loop thread to pick up and wakes
+		 * the selector so that it is registered straight away.
+		 */
+		void register(SocketChannel channel, Server session) {
+			newConnections.add(new Connection(this, channel, session));
+			selector.wakeup();
+		}
+
+		public void run() {
+
+			while (true) {
+				// Service every connection that is ready
+				try {
+					selector.select(this);
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+
+				// Spawn any players that connected since the last select
+				Connection newConnection;
+				while ((newConnection = newConnections.poll()) != null) {
+					if (!newConnection.session.join()) {
+						newConnection.close();
+						continue;
+					}
+					try {
+						newConnection.key = newConnection.channel.register(selector, SelectionKey.OP_READ, newConnection);
+					} catch (IOException e) {
+						newConnection.close();
+					}
+				}
+
+				// Write out any replies the game thread has handed back
+				Connection repliedConnection;
+				while ((repliedConnection = repliedConnections.poll()) != null) {
+					try {
+						repliedConnection.writeReplies();
+					} catch (IOException e) {
+						repliedConnection.close();
+					}
+				}
+
+			}
+		}
+
+		/*
+		 * This method is called by the selector for each connection that is ready.
+		 */
+		public void accept(SelectionKey key) {
+
+			Connection connection = (Connection) key.attachment();
+
+			try {
+				if (key.isValid() && key.isReadable()) {
+					connection.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					connection.flush();
+				}
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/*
+	 * A connection holds the buffers for one client along with the Server
+	 * object that keeps track of the player's game state.
+	 */
+	private static class Connection implements TickEngine.Reply, ViewSubscriptions.Listener {
+
+		private EventLoop loop;
+		private SocketChannel channel;
+		private SelectionKey key;
+		private Server session;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+		private ConcurrentLinkedQueue<String> tickReplies = new ConcurrentLinkedQueue<String>();
+		private AtomicBoolean repliesScheduled = new AtomicBoolean();
+		private AtomicBoolean viewChanged = new AtomicBoolean();
+		private StringBuilder reply = new StringBuilder(64);
+		private boolean binary = false;
+		private int pendingTextReplies = 0;
+
+		Connection(EventLoop loop, SocketChannel channel, Server session) {
+			this.loop = loop;
+			this.channel = channel;
+			this.session = session;
+			session.setViewListener(this);
+		}
+
+		/*
+		 * This method reads whatever the client has sent and answers every
+		 * complete line or frame in it. Partial ones are kept until the rest arrives.
+		 */
+		void read() throws IOException {
+
+			int count = channel.read(readBuffer);
+
+			// The client has closed the socket
+			if (count == -1) {
+				close();
+				return;
+			}
+			loop.metrics.bytesRead(count);
+
+			readBuffer.flip();
+
+			while (readBuffer.hasRemaining() && !session.isFinished()) {
+				int command = binary ? decodeFrame() : decodeLine();
+				if (command == INCOMPLETE) {
+					break;
+				}
+
+				// The HELLO asking for binary is still answered in text
+				boolean binaryReply = binary;
+				if (command == Server.HELLO_BINARY) {
+					binary = true;
+					session.switchToBinary();
+				}
+
+				answer(command, binaryReply);
+			}
+
+			readBuffer.compact();
+
+			// A line longer than the whole buffer can't be a valid command
+			if (!readBuffer.hasRemaining()) {
+				close();
+				return;
+			}
+
+			flush();
+		}
+
+		/*
+		 * This method takes the next line out of the read buffer and returns its
+		 * command code, or INCOMPLETE if the whole line hasn't arrived yet. The
+		 * line is parsed where it sits in the buffer.
+		 */
+		private int decodeLine() {
+
+			int lineStart = readBuffer.position();
+
+			for (int i = lineStart; i < readBuffer.limit(); i++) {
+				if (readBuffer.get(i) == '\n') {
+
+					// Ignore the carriage return sent by some clients
+					int lineEnd = i;
+					if (lineEnd > lineStart && readBuffer.get(lineEnd - 1) == '\r') {
+						lineEnd--;
+					}
+
+					readBuffer.position(i + 1);
+					long start = loop.metrics.startTimer();
+					int command = Server.parseCommand(readBuffer.array(), lineStart, lineEnd);
+					loop.metrics.commandParsed(start);
+					return command;
+				}
+			}
+			return INCOMPLETE;
+		}
+
+		/*
+		 * This method takes the next binary frame out of the read buffer and
+		 * returns its command code, or INCOMPLETE if it hasn't fully arrived.
+		 */
+		private int decodeFrame() {
+
+			int opcode = readBuffer.get(readBuffer.position()) & 0xFF;
+
+			// The argument bytes of a frame go above the opcode in order
+			int argumentBytes = BinaryProtocol.argumentBytes(opcode);
+			if (readBuffer.remaining() < 1 + argumentBytes) {
+				return INCOMPLETE;
+			}
+			readBuffer.get();
+			for (int i = 1; i <= argumentBytes; i++) {
+				opcode |= (readBuffer.get() & 0xFF) << (8 * (argumentBytes - i + 1));
+			}
+			return Server.frameCommand(opcode);
+		}
+
+		/*
+		 * This method answers a command, or queues it on the tick engine with
+		 * a note of whether the reply should be sent as text.
+		 */
+		private void answer(int command, boolean binaryReply) {
+
+			if (loop.tickEngine != null) {
+				if (!binaryReply) {
+					pendingTextReplies++;
+				}
+				loop.tickEngine.submit(session, command, this);
+			} else {
+				reply.setLength(0);
+				session.respond(command, reply);
+				queueReply(reply, binaryReply);
+			}
+		}
+
+		/*
+		 * This method is called by the game thread with the reply to a queued
+		 * command. The reply is handed to the event loop to be written out.
+		 * A client that pipelines gets many replies in the same tick, the loop is
+		 * only woken for the first and writes them all out together.
+		 */
+		public void send(CharSequence output) {
+			tickReplies.add(output.toString());
+			schedule();
+		}
+
+		/*
+		 * This method is called by the game logic when something in the
+		 * player's look window has changed. The loop sends the view the
+		 * next time it writes out this connection's replies.
+		 */
+		public void viewChanged() {
+			viewChanged.set(true);
+			schedule();
+		}
+
+		/*
+		 * This method hands the connection to its event loop to write out.
+		 */
+		private void schedule() {
+			if (repliesScheduled.compareAndSet(false, true)) {
+				loop.repliedConnections.add(this);
+				loop.selector.wakeup();
+			}
+		}
+
+		/*
+		 * This method writes out the replies the game thread has handed back
+		 * and the player's view if it has changed.
+		 */
+		void writeReplies() throws IOException {
+
+			// Replies handed back from now on need the loop woken again
+			repliesScheduled.set(false);
+
+			if (!channel.isOpen()) {
+				return;
+			}
+
+			// Replies come back in order, so the text ones are always first
+			String output;
+			while ((output = tickReplies.poll()) != null) {
+				if (pendingTextReplies > 0) {
+					pendingTextReplies--;
+					queueReply(output, false);
+				} else {
+					queueReply(output, true);
+				}
+			}
+
+			if (viewChanged.getAndSet(false) && !session.isFinished()) {
+				answer(session.lookCommand(), binary);
+			}
+			flush();
+		}
+
+		/*
+		 * This method adds a reply to the output buffer as a line of text or
+		 * as a binary frame, writing the characters straight into the buffer.
+		 */
+		private void queueReply(CharSequence output, boolean binaryReply) {
+
+			if (binaryReply) {
+				ensureWriteSpace(BinaryProtocol.MAX_REPLY_BYTES);
+				BinaryProtocol.encodeReply(output, writeBuffer);
+				return;
+			}
+
+			ensureWriteSpace(output.length() + 1);
+			for (int i = 0; i < output.length(); i++) {
+				writeBuffer.put((byte) output.charAt(i));
+			}
+			writeBuffer.put((byte) '\n');
+		}
+
+		/*
+		 * This method grows the output buffer if it can't fit the given number of bytes.
+		 */
+		private void ensureWriteSpace(int length) {
+
+			if (writeBuffer.remaining() < length) {
+				ByteBuffer biggerBuffer = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2,
+						writeBuffer.position() + length));
+				writeBuffer.flip();
+				biggerBuffer.put(writeBuffer);
+				writeBuffer = biggerBuffer;
+			}
+		}
+
+		/*
+		 * This method writes as much of the output buffer as the socket will take.
+		 * If some is left over the loop waits for the socket to become writable.
+		 */
+		void flush() throws IOException {
+
+			writeBuffer.flip();
+			loop.metrics.bytesWritten(channel.write(writeBuffer));
+			boolean pending = writeBuffer.hasRemaining();
+			writeBuffer.compact();
+
+			if (pending) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			} else if (session.isFinished()) {
+				// The WINNER message has been sent so the connection is done
+				close();
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/*
+		 * This method closes the connection and erases the player if they
+		 * haven't already been erased after winning.
+		 */
+		void close() {
+
+			if (!session.isFinished() && channel.isOpen()) {
+				if (loop.tickEngine != null) {
+					loop.tickEngine.submit(session, Server.DISCONNECT, null);
+				} else {
+					session.leave();
+				}
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * This class keeps track of which player is stood on each tile of the map.
+ * It is a flat array with one cell per tile holding the player's ID plus one,
+ * so zero means the tile is empty. Checking a tile costs the same no matter
+ * how many players are in the game. Tiles can also be claimed and released
+ * with compare and set so that players can move without holding a lock.
+ * Like the map the grid has an empty border around it, so tiles up to the
+ * padding off the edge of the map can be checked without bounds checks.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+public class OccupancyGrid {
+
+	private final static VarHandle CELLS = MethodHandles.arrayElementVarHandle(int[].class);
+	private int[] cells;
+	private int padding;
+	private int stride;
+
+	public OccupancyGrid(int height, int width, int padding) {
+		this.padding = padding;
+		this.stride = width + 2 * padding;
+		this.cells = new int[(height + 2 * padding) * stride];
+	}
+
+	/*
+	 * This method returns where a tile is in the cell array.
+	 */
+	private int index(int y, int x) {
+		return (y + padding) * stride + x + padding;
+	}
+
+	/*
+	 * This method returns true if a player is stood on the tile. Tiles off
+	 * the edge of the map are never occupied.
+	 */
+	public boolean isOccupied(int y, int x) {
+		return getPlayer(y, x) != -1;
+	}
+
+	/*
+	 * This method returns the ID of the player stood on a tile or -1 if
+	 * the tile is empty or off the map.
+	 */
+	public int getPlayer(int y, int x) {
+		return (int) CELLS.getAcquire(cells, index(y, x)) - 1;
+	}
+
+	/*
+	 * This method records that a player is now stood on a tile.
+	 */
+	public void place(int y, int x, int player) {
+		cells[index(y, x)] = player + 1;
+	}
+
+	/*
+	 * This method empties a tile. Positions just off the map, such as the
+	 * position of a player that hasn't spawned yet, are always empty anyway.
+	 */
+	public void clear(int y, int x) {
+		cells[index(y, x)] = 0;
+	}
+
+	/*
+	 * This method claims an empty tile for a player. It returns false if
+	 * another player got there first. Tiles off the map are walls, which
+	 * should be checked for before claiming a tile.
+	 */
+	public boolean tryPlace(int y, int x, int player) {
+		return CELLS.compareAndSet(cells, index(y, x), 0, player + 1);
+	}
+
+	/*
+	 * This method empties a tile, but only if the given player is still stood on it.
+	 */
+	public void release(int y, int x, int player) {
+		CELLS.compareAndSet(cells, index(y, x), player + 1, 0);
+	}
+}
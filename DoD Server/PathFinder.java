@@ -0,0 +1,419 @@
+/*
+ * This class finds the way around the walls of the map for the GOTO
+ * command, so a player can be walked to a tile without sending a MOVE
+ * for every step. Other players are not planned around, a player in the
+ * way just stops the walk.
+ *
+ * Walking to a given tile uses an A* search limited to the box around the
+ * two ends plus SEARCH_MARGIN tiles, which is as far as a path is allowed
+ * to wander to get around walls. Walking to the nearest exit or gold uses
+ * a distance field, which holds for every tile how many moves it is from
+ * the nearest exit or gold. A player just keeps stepping onto a tile one
+ * move closer. Each field is worked out the first time it is needed and the
+ * gold field is then patched whenever gold is picked up, by forgetting the
+ * distances that led to that gold and working them out again from the
+ * tiles around them that still know theirs.
+ *
+ * Both searches keep the tiles still to be tried in a binary heap of
+ * longs, the priority in the top half and the tile in the bottom half.
+ *
+ * Picking up gold never waits for a search. The gold is only queued and
+ * the field is patched the next time it is used. The distance fields are
+ * guarded by this object's monitor, while an A* search takes its arrays
+ * from a pool of spares and holds no lock at all, so searches can run side
+ * by side and only as many sets of arrays are kept as have ever been used
+ * at once.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class PathFinder {
+
+	final static int UNREACHABLE = Integer.MAX_VALUE;
+	private final static int SEARCH_MARGIN = 32;
+	private final static int MAX_SEARCH_TILES = 1 << 20;
+	private final static int[] STEP_Y = { -1, 0, 1, 0 };
+	private final static int[] STEP_X = { 0, 1, 0, -1 };
+	private final static String DIRECTIONS = "NESW";
+
+	private Map map;
+	private int width;
+	private int height;
+	private int[] exitDistances = null;
+	private int[] goldDistances = null;
+	private int[] queue = null;
+	private Search patchSearch = new Search();
+
+	// Gold picked up since the gold field was last used, only queued once the field is being built
+	private volatile boolean goldFieldStarted = false;
+	private ConcurrentLinkedQueue<Integer> removedGold = new ConcurrentLinkedQueue<Integer>();
+	private ConcurrentLinkedQueue<Search> spareSearches = new ConcurrentLinkedQueue<Search>();
+
+	/*
+	 * The arrays used by one search at a time. A tile has been reached in the
+	 * current A* search if its stamp matches, so they don't need clearing.
+	 */
+	private static class Search {
+		int[] stamps = new int[0];
+		int[] costs = new int[0];
+		byte[] steps = new byte[0];
+		int stamp = 0;
+		long[] open = new long[64];
+		int openSize = 0;
+
+		/*
+		 * This method gets the arrays ready for a search of the given
+		 * number of tiles, growing them if they are too small.
+		 */
+		void start(int tiles) {
+
+			if (stamps.length < tiles) {
+				stamps = new int[tiles];
+				costs = new int[tiles];
+				steps = new byte[tiles];
+				stamp = 0;
+			}
+			stamp++;
+			openSize = 0;
+		}
+
+		/*
+		 * This method adds an entry to the heap, growing it if it is full.
+		 */
+		void push(long entry) {
+
+			if (openSize == open.length) {
+				open = Arrays.copyOf(open, open.length * 2);
+			}
+
+			// Move the entry up past every parent bigger than it
+			int child = openSize++;
+			while (child > 0) {
+				int parent = (child - 1) >> 1;
+				if (open[parent] <= entry) {
+					break;
+				}
+				open[child] = open[parent];
+				child = parent;
+			}
+			open[child] = entry;
+		}
+
+		/*
+		 * This method takes the smallest entry off the heap.
+		 */
+		long pop() {
+
+			long smallest = open[0];
+			long last = open[--openSize];
+
+			// Move the last entry down from the top past every smaller child
+			int parent = 0;
+			while (true) {
+				int child = 2 * parent + 1;
+				if (child >= openSize) {
+					break;
+				}
+				if (child + 1 < openSize && open[child + 1] < open[child]) {
+					child++;
+				}
+				if (last <= open[child]) {
+					break;
+				}
+				open[parent] = open[child];
+				parent = child;
+			}
+			open[parent] = last;
+			return smallest;
+		}
+	}
+
+	public PathFinder(Map map) {
+		this.map = map;
+		this.width = map.getMapWidth();
+		this.height = map.getMapHeight();
+	}
+
+	/*
+	 * This method returns true if a player could stand on the tile.
+	 */
+	private boolean walkable(int y, int x) {
+		return y >= 0 && x >= 0 && y < height && x < width && map.lookAtTile(y, x) != '#';
+	}
+
+	/*
+	 * This method finds the shortest path between two tiles and returns it
+	 * as the direction of each move, or null if there is no path within
+	 * the search box or the box would be too big to search.
+	 */
+	public String findPath(int fromY, int fromX, int toY, int toX) {
+
+		if (!walkable(fromY, fromX) || !walkable(toY, toX)) {
+			return null;
+		}
+
+		int top = Math.max(0, Math.min(fromY, toY) - SEARCH_MARGIN);
+		int left = Math.max(0, Math.min(fromX, toX) - SEARCH_MARGIN);
+		int boxHeight = Math.min(height, Math.max(fromY, toY) + SEARCH_MARGIN + 1) - top;
+		int boxWidth = Math.min(width, Math.max(fromX, toX) + SEARCH_MARGIN + 1) - left;
+		if ((long) boxHeight * boxWidth > MAX_SEARCH_TILES) {
+			return null;
+		}
+
+		Search search = spareSearches.poll();
+		if (search == null) {
+			search = new Search();
+		}
+		try {
+			return findPath(search, top, left, boxHeight, boxWidth, fromY, fromX, toY, toX);
+		} finally {
+			spareSearches.add(search);
+		}
+	}
+
+	private String findPath(Search search, int top, int left, int boxHeight, int boxWidth,
+			int fromY, int fromX, int toY, int toX) {
+
+		search.start(boxHeight * boxWidth);
+		int[] stamps = search.stamps;
+		int[] costs = search.costs;
+		int stamp = search.stamp;
+
+		int start = (fromY - top) * boxWidth + fromX - left;
+		int goal = (toY - top) * boxWidth + toX - left;
+		stamps[start] = stamp;
+		costs[start] = 0;
+		search.push((long) distance(fromY, fromX, toY, toX) << 32 | start);
+
+		while (search.openSize > 0) {
+			long next = search.pop();
+			int tile = (int) next;
+			int y = tile / boxWidth;
+			int x = tile % boxWidth;
+
+			if (tile == goal) {
+				return tracePath(search, goal, boxWidth);
+			}
+			// Skip tiles that were queued again after a shorter way to them was found
+			if ((next >>> 32) > costs[tile] + distance(y + top, x + left, toY, toX)) {
+				continue;
+			}
+
+			for (int step = 0; step < 4; step++) {
+				int nextY = y + STEP_Y[step];
+				int nextX = x + STEP_X[step];
+				if (nextY < 0 || nextX < 0 || nextY >= boxHeight || nextX >= boxWidth
+						|| !walkable(nextY + top, nextX + left)) {
+					continue;
+				}
+
+				int neighbour = nextY * boxWidth + nextX;
+				int cost = costs[tile] + 1;
+				if (stamps[neighbour] != stamp || cost < costs[neighbour]) {
+					stamps[neighbour] = stamp;
+					costs[neighbour] = cost;
+					search.steps[neighbour] = (byte) step;
+					search.push((long) (cost + distance(nextY + top, nextX + left, toY, toX)) << 32 | neighbour);
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * This method follows the steps of a finished search back from the goal
+	 * to the start and returns them in the order they should be made.
+	 */
+	private String tracePath(Search search, int goal, int boxWidth) {
+
+		StringBuilder path = new StringBuilder(search.costs[goal]);
+		int tile = goal;
+		for (int i = search.costs[goal]; i > 0; i--) {
+			int step = search.steps[tile];
+			path.append(DIRECTIONS.charAt(step));
+			tile -= STEP_Y[step] * boxWidth + STEP_X[step];
+		}
+		return path.reverse().toString();
+	}
+
+	private static int distance(int fromY, int fromX, int toY, int toX) {
+		return Math.abs(fromY - toY) + Math.abs(fromX - toX);
+	}
+
+	/*
+	 * This method returns how many moves the tile is from the nearest tile
+	 * of the given kind, 'E' or 'G', or UNREACHABLE.
+	 */
+	public synchronized int distanceTo(char target, int y, int x) {
+
+		if (!walkable(y, x)) {
+			return UNREACHABLE;
+		}
+		return field(target)[y * width + x];
+	}
+
+	/*
+	 * This method returns the direction of a move from the tile that gets
+	 * one move closer to the nearest tile of the given kind, or zero if
+	 * every such move is blocked by a player.
+	 */
+	public synchronized char nextStep(char target, int y, int x, OccupancyGrid occupancy) {
+
+		int[] distances = field(target);
+		int here = distances[y * width + x];
+
+		for (int step = 0; step < 4; step++) {
+			int nextY = y + STEP_Y[step];
+			int nextX = x + STEP_X[step];
+			if (walkable(nextY, nextX) && distances[nextY * width + nextX] == here - 1
+					&& !occupancy.isOccupied(nextY, nextX)) {
+				return DIRECTIONS.charAt(step);
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * This method returns the distance field for exits or gold, working it
+	 * out with a breadth first search from every such tile if this is the
+	 * first time it has been needed. The gold field is first patched for
+	 * any gold picked up since it was last used.
+	 */
+	private int[] field(char target) {
+
+		if (target == 'E') {
+			if (exitDistances == null) {
+				exitDistances = buildField('E');
+			}
+			return exitDistances;
+		}
+
+		// Set before the map is read, so gold taken while it is read is still queued
+		if (goldDistances == null) {
+			goldFieldStarted = true;
+			goldDistances = buildField('G');
+		}
+		Integer tile;
+		while ((tile = removedGold.poll()) != null) {
+			patchGold(tile / width, tile % width);
+		}
+		return goldDistances;
+	}
+
+	private int[] buildField(char target) {
+
+		int[] distances = new int[width * height];
+		Arrays.fill(distances, UNREACHABLE);
+		if (queue == null) {
+			queue = new int[width * height];
+		}
+
+		int tail = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (map.lookAtTile(y, x) == target) {
+					distances[y * width + x] = 0;
+					queue[tail++] = y * width + x;
+				}
+			}
+		}
+
+		for (int head = 0; head < tail; head++) {
+			int tile = queue[head];
+			int y = tile / width;
+			int x = tile % width;
+
+			for (int step = 0; step < 4; step++) {
+				int nextY = y + STEP_Y[step];
+				int nextX = x + STEP_X[step];
+				if (walkable(nextY, nextX) && distances[nextY * width + nextX] == UNREACHABLE) {
+					distances[nextY * width + nextX] = distances[tile] + 1;
+					queue[tail++] = nextY * width + nextX;
+				}
+			}
+		}
+		return distances;
+	}
+
+	/*
+	 * This method is told when the gold on a tile has been picked up. It
+	 * takes no lock, the gold is only queued until the field is next used.
+	 */
+	public void goldRemoved(int y, int x) {
+
+		if (goldFieldStarted) {
+			removedGold.add(y * width + x);
+		}
+	}
+
+	/*
+	 * This method patches the gold field after the gold on a tile has been
+	 * picked up. Every tile whose distance was counted to this gold is found
+	 * by following the distances up from it one move at a time. Those
+	 * distances are forgotten and then worked out again shortest first from
+	 * the tiles bordering them.
+	 */
+	private void patchGold(int y, int x) {
+
+		if (goldDistances[y * width + x] != 0) {
+			return;
+		}
+
+		// Forget the distances one move further out at a time
+		int tail = 0;
+		queue[tail++] = y * width + x;
+		goldDistances[y * width + x] = UNREACHABLE;
+		int level = 0;
+		int levelEnd = tail;
+
+		for (int head = 0; head < tail; head++) {
+			if (head == levelEnd) {
+				level++;
+				levelEnd = tail;
+			}
+			int tile = queue[head];
+
+			for (int step = 0; step < 4; step++) {
+				int nextY = tile / width + STEP_Y[step];
+				int nextX = tile % width + STEP_X[step];
+				if (walkable(nextY, nextX) && goldDistances[nextY * width + nextX] == level + 1) {
+					goldDistances[nextY * width + nextX] = UNREACHABLE;
+					queue[tail++] = nextY * width + nextX;
+				}
+			}
+		}
+
+		// Start again from every tile next to the forgotten ones that still knows its distance
+		Search search = patchSearch;
+		search.openSize = 0;
+		for (int i = 0; i < tail; i++) {
+			int tile = queue[i];
+			for (int step = 0; step < 4; step++) {
+				int nextY = tile / width + STEP_Y[step];
+				int nextX = tile % width + STEP_X[step];
+				if (walkable(nextY, nextX) && goldDistances[nextY * width + nextX] != UNREACHABLE) {
+					search.push((long) goldDistances[nextY * width + nextX] << 32 | (nextY * width + nextX));
+				}
+			}
+		}
+
+		while (search.openSize > 0) {
+			long next = search.pop();
+			int tile = (int) next;
+			int distance = (int) (next >>> 32);
+			if (distance > goldDistances[tile]) {
+				continue;
+			}
+
+			for (int step = 0; step < 4; step++) {
+				int nextY = tile / width + STEP_Y[step];
+				int nextX = tile % width + STEP_X[step];
+				if (walkable(nextY, nextX) && distance + 1 < goldDistances[nextY * width + nextX]) {
+					goldDistances[nextY * width + nextX] = distance + 1;
+					search.push((long) (distance + 1) << 32 | (nextY * width + nextX));
+				}
+			}
+		}
+	}
+}
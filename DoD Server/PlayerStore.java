@@ -0,0 +1,164 @@
+/*
+ * This class stores the state of every player in the game. Rather than
+ * one object per player the positions, gold and state flags are kept
+ * in parallel primitive arrays indexed by player ID. IDs freed when a
+ * player leaves are put on a free list and handed out again before any
+ * new ones, so the arrays stay densely filled and grow only when every
+ * slot is in use.
+ *
+ * Adding and removing players is done under the game lock, but a player's
+ * own slot is read by their connection's thread without it. The arrays
+ * are kept together in one object behind a volatile field, so growing
+ * swaps them all at once and a reader always sees a full set of arrays
+ * big enough for every ID handed out before it looked. A store that can
+ * grow is only written to under the game lock, so no write is lost while
+ * the arrays are being copied.
+ */
+
+import java.util.Arrays;
+
+public class PlayerStore {
+
+	final static byte ACTIVE = 1;
+	private final static int INITIAL_CAPACITY = 16;
+
+	/*
+	 * The arrays holding every player's state, all the same length.
+	 */
+	private static class Slots {
+		int[] positionY;
+		int[] positionX;
+		int[] gold;
+		byte[] flags;
+	}
+
+	private volatile Slots slots;
+	private int[] freeSlots;
+	private int freeCount = 0;
+	private int limit = 0;
+	private int activeCount = 0;
+	private boolean growable;
+
+	public PlayerStore() {
+		this(INITIAL_CAPACITY, true);
+	}
+
+	/*
+	 * Constructor for a store with a given starting size. A store that
+	 * isn't growable never replaces its arrays, so other threads can keep
+	 * reading and writing a player's slot while players join and leave.
+	 */
+	public PlayerStore(int capacity, boolean growable) {
+		this.growable = growable;
+		Slots created = new Slots();
+		created.positionY = new int[capacity];
+		created.positionX = new int[capacity];
+		created.gold = new int[capacity];
+		created.flags = new byte[capacity];
+		slots = created;
+		freeSlots = new int[capacity];
+	}
+
+	/*
+	 * This method finds a slot for a new player and returns its ID. A freed
+	 * slot is reused if there is one, otherwise the arrays grow if they are full.
+	 * It returns -1 if the store is full and can't grow.
+	 */
+	public int add() {
+
+		int player;
+		if (freeCount > 0) {
+			player = freeSlots[--freeCount];
+		} else {
+			if (limit == freeSlots.length) {
+				if (!growable) {
+					return -1;
+				}
+				grow();
+			}
+			player = limit++;
+		}
+
+		Slots current = slots;
+		current.positionY[player] = -1;
+		current.positionX[player] = -1;
+		current.gold[player] = 0;
+		current.flags[player] = ACTIVE;
+		activeCount++;
+		return player;
+	}
+
+	/*
+	 * This method frees a player's slot so that the ID can be given to
+	 * the next player that joins.
+	 */
+	public void remove(int player) {
+
+		if (!isActive(player)) {
+			return;
+		}
+
+		Slots current = slots;
+		current.positionY[player] = -1;
+		current.positionX[player] = -1;
+		current.gold[player] = 0;
+		current.flags[player] = 0;
+		freeSlots[freeCount++] = player;
+		activeCount--;
+	}
+
+	/*
+	 * This method doubles the size of every array. The copies are filled
+	 * in before they are published, all at once.
+	 */
+	private void grow() {
+
+		Slots current = slots;
+		int capacity = current.flags.length * 2;
+		Slots grown = new Slots();
+		grown.positionY = Arrays.copyOf(current.positionY, capacity);
+		grown.positionX = Arrays.copyOf(current.positionX, capacity);
+		grown.gold = Arrays.copyOf(current.gold, capacity);
+		grown.flags = Arrays.copyOf(current.flags, capacity);
+		slots = grown;
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+	}
+
+	public void setPosition(int player, int y, int x) {
+		Slots current = slots;
+		current.positionY[player] = y;
+		current.positionX[player] = x;
+	}
+
+	public int getY(int player) {
+		return slots.positionY[player];
+	}
+
+	public int getX(int player) {
+		return slots.positionX[player];
+	}
+
+	public int getGold(int player) {
+		return slots.gold[player];
+	}
+
+	public int addGold(int player) {
+		return ++slots.gold[player];
+	}
+
+	public boolean isActive(int player) {
+		return (slots.flags[player] & ACTIVE) != 0;
+	}
+
+	/*
+	 * Returns one past the highest ID handed out, scans over all
+	 * players only need to look at IDs below this.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	public int getPlayerCount() {
+		return activeCount;
+	}
+}
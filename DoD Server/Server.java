@@ -1,250 +1,1114 @@
-/*
- * This server class handles all of the client connections
- * including outputting to the clients and getting inputs
- * from the clients. When a client connects it gets a dedicated
- * thread which sned the appropriate output when and input
- * from a client is received.
- */
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import javax.swing.JOptionPane;
-
-public class Server implements Runnable {
-	
-	private static int port = 0;
-	private static ServerSocket serverSock;
-	private int player = 0;
-	private GameLogic logic;
-	private Socket clientConnection;
-	private BufferedReader clientReader;
-	private PrintWriter clientWriter;
-	private final static int MAX_CONNECTIONS = 10;
-	
-	/*
-	 * Constructor for when a  new thread is created, each
-	 * client gets a reader and writer as well as a player ID.
-	 */
-	public Server(Socket sock, int player, GameLogic logic) throws IOException {
-		this.player = player;
-		this.logic = logic;
-		this.clientConnection = sock;
-		this.clientReader = new BufferedReader(new InputStreamReader(clientConnection.getInputStream()));
-		this.clientWriter = new PrintWriter(clientConnection.getOutputStream(), true);
-	}
-
-	/*
-	 * This main method sets up the game and creates a new thread every time a
-	 * player joins the server to handle their requests.
-	 */
-	public static void main(String args[]) throws IOException {
-		
-		setupServerSocket();
-		
-		// Get input for custom map name
-		String mapName = JOptionPane.showInputDialog(null, "Please input a map name or leave "
-				+ "blank for defualt map.", "Server Map Details", JOptionPane.PLAIN_MESSAGE);
-		
-		GameLogic logic = new GameLogic(port);
-		
-		logic.setMap(mapName);	
-		
-		int players = 0;
-		
-		// Loop while the server is running
-		while (logic.isRunning() && players < MAX_CONNECTIONS) {
-			Socket sock = serverSock.accept();
-			// Create a new thread for the newly connected client
-			Thread t1 = new Thread(new Server(sock, players, logic));
-			t1.start();
-			System.out.println("Player " + players + " connected.");
-			players++;
-		}
-		serverSock.close();
-	}
-	
-	/*
-	 * This is the threaded code that handles the output to each client.
-	 * Messages reagarding players connecting and disconnecting
-	 * are printed to the server console window.
-	 */
-	public void run() {
-		
-		logic.setPlayerPosition(player);
-		boolean winner = false;
-		
-		// This loop ends when the player disconnects via a return statement
-		while (true) {
-			String input = readFromClient();
-			// The read method returns null if the client had closed the socket
-			if (input == null) {
-				logic.erasePlayer(player);
-				System.out.println("Player " + player + " disconnected.");
-				return;
-			}
-			
-			// Decide what to output to client based on input
-			String output = updatePlayer(input, player);
-			
-			// Output response to the client
-			clientWriter.println(output);
-			
-			if(winner == false) {
-				winner = logic.checkWin(player);
-			}
-
-			// Erase the player from the server after they have won
-			if(input.contains("LOOK") && winner == true) {
-				logic.erasePlayer(player);
-				System.out.println("Player " + player + " has won.");
-				System.out.println("Player " + player + " disconnected.");
-				
-				// Tell the client they have won
-				try {
-					clientWriter.println("WINNER");
-					clientConnection.close();
-					return;
-					
-				} catch (IOException e) {
-					e.printStackTrace();
-					return;
-				}
-			}
-		}
-	}
-
-	/*
-	 * This method takes commands from clients and decides what operation
-	 * needs to be performed.
-	 */
-	private String parseCommand(String inputCommand) {
-		String[] command;
-		
-		// Protect against null pointer exception
-		if (inputCommand != null) {
-			command = inputCommand.trim().split(" ");
-		} else {
-			return "FAIL";
-		}
-
-		String answer = "";
-		
-		// Choose what to do based on the command received
-		switch (command[0].toUpperCase()) {
-			
-		case "HELLO":
-			answer = logic.hello(player);
-			break;
-			
-		case "MOVE":
-			// Check there exists a valid direction to move in
-			if (command.length == 2) {
-				if (command[1].toUpperCase().equals("N") || command[1].toUpperCase().equals("E")
-						|| command[1].toUpperCase().equals("S") || command[1].toUpperCase().equals("W")) {
-							
-					answer = logic.move(command[1].toUpperCase().charAt(0), player);
-				} else {
-					answer = "FAIL";
-				}
-			} else {
-				answer = "FAIL";
-			}
-			break;
-			
-		case "PICKUP":
-			answer = logic.pickup(player);
-			break;
-			
-		case "LOOK":
-			answer = logic.look(player);
-			break;
-			
-		default:
-			answer = "FAIL";
-			break;
-		}
-		return answer;
-	}
-	
-	/*
-	 * This method is called every time the server receives an input from a client.
-	 * It decides what should be outputted back to the client and returns it .
-	 */
-	private String updatePlayer(String input, int player) {
-		this.player = player;
-		String answer = "";
-		answer = parseCommand(input);
-		return answer;
-	}
-	
-	/*
-	 * This method handles receiving inputs from a client it returns
-	 * null if the client wants to quit or if the client program terminates.
-	 * Otherwise it returns the string received from the client.
-	 */
-	private String readFromClient() {
-
-		String input;
-
-		try {
-			input = clientReader.readLine();
-			return input;
-		} catch (IOException e) {
-			return null;
-		}
-	}
-	
-	/*
-	 * This method provides an input method for the server IP and port and
-	 * sets up the server socket.
-	 */
-	private static void setupServerSocket() {
-		
-		boolean portValid = true;
-		do {
-			
-			// Get port info from user
-			String serverInfo = JOptionPane.showInputDialog(null, "Please input a port"
-					, "Server Connection Details", JOptionPane.PLAIN_MESSAGE);
-					
-			if(serverInfo == null) {
-				System.exit(-1);
-			}
-			
-			// Check the port is in the valid port range
-			try{
-				port = Integer.parseInt(serverInfo);
-				if(port > 65536 || port < 0) {
-					showMSG("The port is invalid");
-					portValid = false;
-				}
-				
-			} catch(NumberFormatException e) {
-				showMSG("The port is invalid");
-				portValid = false;
-			}
-			
-		} while(portValid == false);
-		
-		// Setup server socket
-		try {
-			serverSock = new ServerSocket(port);
-		} catch (IOException e) {
-			showMSG("Port already in use this server will be terminated");
-			System.exit(-1);
-		}
-	}
-	
-	/*
-	 * This method shows error messages to the user.
-	 */
-	private static void showMSG(String errorMSG) {
-		JOptionPane.showMessageDialog(null, errorMSG, null, JOptionPane.WARNING_MESSAGE);
-	}
-	
-	
-}
+/*
+ * This server class handles all of the client connections
+ * including outputting to the clients and getting inputs
+ * from the clients. When a client connects it gets a dedicated
+ * thread which sned the appropriate output when and input
+ * from a client is received. The client threads can instead be virtual
+ * threads or come from a fixed pool, and starting the server with
+ * --threads=nio hands the connections to the NioServer event loops.
+ * Clients that ask for it with "HELLO BINARY" are switched over to the
+ * compact BinaryProtocol once that HELLO has been answered. Clients that
+ * send SUBSCRIBE are sent their look window whenever something in it
+ * changes, without having to ask. "VIEW n" changes the size of the
+ * player's look window. "GOTO y x", "GOTO EXIT" and "GOTO GOLD" walk the
+ * player there, making all the moves on the server.
+ * With --headless the server takes its port and map from the command line
+ * or a config file and never opens a window, so it can run without a screen.
+ * With --metrics-port=n every command is timed and the server's metrics
+ * are served on http://localhost:n/metrics, see ServerMetrics.
+ */
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.JOptionPane;
+
+public class Server implements Runnable, TickEngine.Reply, ViewSubscriptions.Listener {
+	
+	private static int port = 0;
+	private static int maxPlayers = 100000;
+	private static boolean headless = false;
+	private static Properties config = new Properties();
+	private static ServerSocket serverSock;
+	private static ServerSocketChannel serverChannel;
+	private static TickEngine tickEngine = null;
+	private static LinkedBlockingQueue<Server> changedViews = new LinkedBlockingQueue<Server>();
+	private static Thread viewPublisher = null;
+	private int player = -1;
+	private GameLogic logic;
+	private Socket clientConnection;
+	private InputStream clientInput;
+	private OutputStream clientOutput;
+	private byte[] inputBuffer;
+	private int inputStart = 0;
+	private int inputEnd = 0;
+	private ByteBuffer outputBuffer;
+	private StringBuilder reply = new StringBuilder(64);
+	private volatile boolean binary = false;
+	private boolean winner = false;
+	private volatile boolean finished = false;
+	private boolean disconnected = false;
+	private boolean subscribed = false;
+	private int viewSize = Map.MIN_VIEW;
+	private ByteBuffer tickOutput;
+	private boolean tickBinary = false;
+	private boolean tickReplied = false;
+	private int tickCommand;
+	private LookDelta lookDelta = null;
+	private ViewSubscriptions.Listener viewListener = this;
+	private AtomicBoolean viewChanged = new AtomicBoolean();
+	private final Object sessionLock = new Object();
+	private final static int EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+	private final static int ACCEPT_BACKLOG = 1024;
+	private final static int TICK_BUFFER_SIZE = 65536;
+	private final static int INPUT_BUFFER_SIZE = 1024;
+	private final static int OUTPUT_BUFFER_SIZE = 256;
+	
+	// Command codes hold the opcode in the low byte and any argument character above it
+	final static int DISCONNECT = -1;
+	final static int HELLO_BINARY = BinaryProtocol.HELLO | 'B' << 8;
+	final static int LOOK_DELTA = BinaryProtocol.LOOK | 'D' << 8;
+	final static int SUBSCRIBE = BinaryProtocol.SUBSCRIBE;
+	final static int GOTO_EXIT = BinaryProtocol.GOTO_NEAREST | 'E' << 8;
+	final static int GOTO_GOLD = BinaryProtocol.GOTO_NEAREST | 'G' << 8;
+	
+	/*
+	 * Constructor for when a  new thread is created, each
+	 * client gets input and output buffers that are reused for
+	 * every command. The player ID is given out by the game
+	 * logic when the player joins.
+	 */
+	public Server(Socket sock, GameLogic logic) throws IOException {
+		this.logic = logic;
+		this.clientConnection = sock;
+		this.clientInput = clientConnection.getInputStream();
+		this.clientOutput = clientConnection.getOutputStream();
+		this.inputBuffer = new byte[INPUT_BUFFER_SIZE];
+		this.outputBuffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+		this.tickOutput = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+	}
+	
+	/*
+	 * Constructor for a client whose socket is owned by someone else,
+	 * such as an NioServer event loop. Only the game state is kept here.
+	 */
+	public Server(GameLogic logic) {
+		this.logic = logic;
+	}
+
+	/*
+	 * This main method sets up the game and creates a new thread every time a
+	 * player joins the server to handle their requests. The thread model can
+	 * be chosen with --threads=thread (default), virtual, pool or nio and
+	 * --logic=lockfree swaps the locked game logic for the lock-free one.
+	 * --logic=tick applies every command on one game thread in fixed ticks.
+	 * --tiles=packed stores the map at four bits a tile, --tiles=zorder does
+	 * the same with the tiles laid out in Z-order blocks. A map ending in
+	 * .dodmap is memory mapped instead of read in, see MapConverter.
+	 * --headless takes the port and map from --port and --map instead of
+	 * asking for them and shows no GUI, and --max-players limits how many
+	 * can play at once. Any option can instead be given in a properties
+	 * file named by --config, such as "port=4004" or "headless=true".
+	 * --metrics-port serves the ServerMetrics on that port.
+	 */
+	public static void main(String args[]) throws IOException {
+		
+		String configFile = getOption(args, "config", null);
+		if (configFile != null) {
+			try (FileReader reader = new FileReader(configFile)) {
+				config.load(reader);
+			} catch (IOException e) {
+				System.err.println("Config file " + configFile + " could not be read");
+				System.exit(-1);
+			}
+		}
+		
+		// Headless mode must be known before anything might open a window
+		headless = Boolean.parseBoolean(getOption(args, "headless", "false")) || Boolean.getBoolean("java.awt.headless");
+		if (headless) {
+			System.setProperty("java.awt.headless", "true");
+		}
+		maxPlayers = Integer.parseInt(getOption(args, "max-players", String.valueOf(maxPlayers)));
+		
+		String threadModel = getOption(args, "threads", "thread");
+		Executor clientExecutor = null;
+		if (!threadModel.equals("nio")) {
+			clientExecutor = createExecutor(threadModel, Integer.parseInt(getOption(args, "pool-size",
+					String.valueOf(EVENT_LOOPS * 4))));
+		}
+		
+		setupServerSocket(threadModel.equals("nio"), getOption(args, "port", null));
+		
+		// Get input for custom map name
+		String mapName = getOption(args, "map", null);
+		if (mapName == null && headless) {
+			mapName = "";
+		} else if (mapName == null) {
+			mapName = JOptionPane.showInputDialog(null, "Please input a map name or leave "
+					+ "blank for defualt map.", "Server Map Details", JOptionPane.PLAIN_MESSAGE);
+		}
+		
+		String logicMode = getOption(args, "logic", "locked");
+		GameLogic logic = createGameLogic(logicMode);
+		logic.setMaxPlayers(maxPlayers);
+		
+		String metricsPort = getOption(args, "metrics-port", null);
+		if (metricsPort != null) {
+			try {
+				logic.getMetrics().start(Integer.parseInt(metricsPort));
+			} catch (IOException | IllegalArgumentException e) {
+				showMSG("The metrics could not be served on port " + metricsPort);
+				System.exit(-1);
+			}
+		}
+		
+		String tileStorage = getOption(args, "tiles", "chars");
+		if (mapName != null && mapName.endsWith(".dodmap")) {
+			logic.useMap(new MappedMap());
+		} else if (!tileStorage.equals("chars")) {
+			logic.useMap(new PackedMap(tileStorage.equals("zorder")));
+		}
+		logic.setMap(mapName, !headless);	
+		
+		// Start the game thread if commands are to be applied in ticks
+		if (logicMode.equals("tick")) {
+			tickEngine = new TickEngine(TICK_BUFFER_SIZE, Integer.parseInt(getOption(args, "tick-rate", "100")));
+			new Thread(tickEngine, "TickEngine").start();
+		}
+		
+		// Non-blocking mode multiplexes every client over a few event loop threads
+		if (threadModel.equals("nio")) {
+			new NioServer(serverChannel, logic, tickEngine, EVENT_LOOPS, maxPlayers).run();
+			return;
+		}
+		
+		// Loop while the server is running
+		while (logic.isRunning()) {
+			Socket sock = serverSock.accept();
+			
+			// Turn the client away if the server is full
+			if (logic.getPlayerCount() >= maxPlayers) {
+				sock.close();
+				continue;
+			}
+			
+			// Run the newly connected client on the chosen executor
+			clientExecutor.execute(new Server(sock, logic));
+		}
+		serverSock.close();
+	}
+	
+	/*
+	 * This method creates the game logic for the chosen concurrency mode.
+	 */
+	private static GameLogic createGameLogic(String logicMode) {
+		
+		switch (logicMode) {
+		
+		case "locked":
+		case "tick":
+			return new GameLogic(port);
+			
+		case "lockfree":
+			return new ConcurrentGameLogic(port, maxPlayers);
+			
+		default:
+			showMSG("Unknown game logic mode " + logicMode);
+			System.exit(-1);
+			return null;
+		}
+	}
+	
+	/*
+	 * This method creates the executor that runs each client's blocking loop.
+	 * "thread" starts a platform thread per client as the server always has,
+	 * "virtual" uses a virtual thread per client and "pool" shares a fixed
+	 * number of platform threads between clients.
+	 */
+	private static Executor createExecutor(String threadModel, int poolSize) {
+		
+		switch (threadModel) {
+		
+		case "thread":
+			return new Executor() {
+				public void execute(Runnable client) {
+					new Thread(client).start();
+				}
+			};
+			
+		case "virtual":
+			return newVirtualThreadExecutor();
+			
+		case "pool":
+			return Executors.newFixedThreadPool(poolSize);
+			
+		default:
+			showMSG("Unknown thread model " + threadModel);
+			System.exit(-1);
+			return null;
+		}
+	}
+	
+	/*
+	 * This method creates a virtual thread per task executor. It is looked up
+	 * by reflection so the server still compiles and runs on Java versions
+	 * without virtual threads, where a cached thread pool is used instead.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+			
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not available, using a cached thread pool.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/*
+	 * This is the threaded code that handles the output to each client.
+	 * Messages reagarding players connecting and disconnecting
+	 * are printed to the server console window.
+	 */
+	public void run() {
+		
+		// Turn the client away if there is no room for them
+		if (!join()) {
+			try {
+				clientConnection.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		// This loop ends when the player disconnects via a return statement
+		while (true) {
+			int command = readFromClient();
+			
+			// In ticks the reply is waited for without the session lock, so pushed views aren't held up
+			if (tickEngine != null && command != DISCONNECT && !finished) {
+				awaitTickReply(command);
+				if (command == HELLO_BINARY) {
+					binary = true;
+				}
+			}
+			
+			// Pushed views are written from another thread so the reply is worked out under the session lock
+			synchronized (sessionLock) {
+				// Replies from the game thread go out in the order it worked them out
+				if (tickEngine != null) {
+					writeTickOutput();
+				}
+				
+				// The player may have won, from a pushed view or in the last tick
+				if (finished) {
+					closeConnection();
+					return;
+				}
+				
+				// The read method returns DISCONNECT if the client had closed the socket
+				if (command == DISCONNECT) {
+					disconnected = true;
+					if (tickEngine != null) {
+						tickEngine.submit(this, DISCONNECT, null);
+					} else {
+						leave();
+					}
+					return;
+				}
+				
+				// Output response to the client, the HELLO asking for binary is still answered in text
+				if (tickEngine == null) {
+					boolean binaryReply = binary;
+					CharSequence output = execute(command);
+					if (command == HELLO_BINARY) {
+						binary = true;
+					}
+					writeToClient(output, binaryReply);
+				}
+				
+				// Close the connection after the player has won
+				if (finished) {
+					closeConnection();
+					return;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * This method is called by the game logic when something in the player's
+	 * look window has changed. The view is sent by the view publisher thread,
+	 * and only once however many changes there are before it gets to it.
+	 */
+	public void viewChanged() {
+		if (viewChanged.compareAndSet(false, true)) {
+			changedViews.add(this);
+		}
+	}
+	
+	/*
+	 * This method sends the player their look window without them asking,
+	 * in the same form as their own LOOKs. In ticks the LOOK is only queued,
+	 * the game thread hands the view back to be written out by publishView.
+	 */
+	private void pushView() {
+		
+		if (tickEngine != null) {
+			// Queued under the lock so it can't go in after the player's DISCONNECT
+			synchronized (sessionLock) {
+				if (!finished && !disconnected) {
+					tickEngine.submit(this, lookCommand(), pushedView);
+				}
+			}
+			return;
+		}
+		
+		synchronized (sessionLock) {
+			if (finished || disconnected) {
+				return;
+			}
+			boolean binaryReply = binary;
+			writeToClient(execute(lookCommand()), binaryReply);
+			flushOutput();
+			
+			if (finished) {
+				closeConnection();
+			}
+		}
+	}
+	
+	/*
+	 * This method is called by the game thread with a pushed view. It is
+	 * queued behind the replies before it and the view publisher writes it out.
+	 */
+	private final TickEngine.Reply pushedView = new TickEngine.Reply() {
+		public void send(CharSequence output) {
+			queueTickOutput(output, 0);
+			changedViews.add(Server.this);
+		}
+	};
+	
+	/*
+	 * This method writes out whatever the game thread has handed back for
+	 * this player, for the view publisher in ticks.
+	 */
+	private void publishView() {
+		
+		synchronized (sessionLock) {
+			if (disconnected) {
+				return;
+			}
+			writeTickOutput();
+			flushOutput();
+			
+			if (finished) {
+				closeConnection();
+			}
+		}
+	}
+	
+	/*
+	 * This method returns the LOOK the client would send, a delta LOOK if it has asked for one before.
+	 */
+	int lookCommand() {
+		return lookDelta != null ? LOOK_DELTA : BinaryProtocol.LOOK;
+	}
+	
+	/*
+	 * This method sends anything left in the output buffer and closes the connection.
+	 */
+	private void closeConnection() {
+		
+		try {
+			flushOutput();
+			clientConnection.close();
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * This method starts the thread that sends the views of subscribed players
+	 * on the threaded server, the first time a player subscribes.
+	 */
+	private static synchronized void startViewPublisher() {
+		
+		if (viewPublisher != null) {
+			return;
+		}
+		
+		viewPublisher = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Server session = changedViews.take();
+						if (session.viewChanged.getAndSet(false)) {
+							session.pushView();
+						}
+						if (tickEngine != null) {
+							session.publishView();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "ViewPublisher");
+		viewPublisher.setDaemon(true);
+		viewPublisher.start();
+	}
+	
+	/*
+	 * This method tells the session its client has switched to binary
+	 * frames, when an NioServer event loop owns the connection. It only
+	 * decides which form of a delta look is smaller.
+	 */
+	void switchToBinary() {
+		binary = true;
+	}
+	
+	/*
+	 * This method lets whoever owns the connection, such as an NioServer
+	 * event loop, be told about view changes instead of this object.
+	 */
+	void setViewListener(ViewSubscriptions.Listener listener) {
+		this.viewListener = listener;
+	}
+	
+	/*
+	 * This method spawns the player into the world when their connection starts.
+	 * It returns false if the game has no room for the player, in which case
+	 * the connection should be closed.
+	 */
+	boolean join() {
+		player = logic.addPlayer();
+		if (player == -1) {
+			finished = true;
+			return false;
+		}
+		logic.getMetrics().connectionOpened();
+		System.out.println("Player " + player + " connected.");
+		return true;
+	}
+	
+	/*
+	 * This method erases the player from the world when their connection drops.
+	 */
+	void leave() {
+		logic.erasePlayer(player);
+		logic.getMetrics().connectionClosed();
+		System.out.println("Player " + player + " disconnected.");
+	}
+	
+	/*
+	 * This method works out the full reply to one command and adds it to the
+	 * output. If the player has won the WINNER message is added to the reply
+	 * and the player is erased, after which the connection should be closed.
+	 * The whole command is timed in the metrics.
+	 */
+	void respond(int command, StringBuilder output) {
+		
+		ServerMetrics metrics = logic.getMetrics();
+		long start = metrics.startTimer();
+		
+		// Decide what to output to client based on input
+		runCommand(command, output);
+		
+		if(winner == false) {
+			winner = logic.checkWin(player);
+		}
+
+		// Erase the player from the server after they have won
+		if((command & 0xFF) == BinaryProtocol.LOOK && winner == true) {
+			logic.declareWinner(player);
+			metrics.connectionClosed();
+			System.out.println("Player " + player + " has won.");
+			System.out.println("Player " + player + " disconnected.");
+			
+			// Tell the client they have won
+			output.append("\nWINNER");
+			finished = true;
+		}
+		metrics.commandDone(command, start);
+	}
+	
+	/*
+	 * This method applies a command straight away, when the server isn't running in ticks.
+	 */
+	private CharSequence execute(int command) {
+		reply.setLength(0);
+		respond(command, reply);
+		return reply;
+	}
+	
+	/*
+	 * This method queues a command for the game thread and waits until it
+	 * has been applied. The reply is left in the tick output to be written.
+	 * Commands from a player who has won are dropped, so it also stops
+	 * waiting once the player has won from a pushed view.
+	 */
+	private void awaitTickReply(int command) {
+		
+		tickCommand = command;
+		tickEngine.submit(this, command, this);
+		synchronized (this) {
+			while (!tickReplied && !finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			tickReplied = false;
+		}
+	}
+	
+	/*
+	 * This method is called by the game thread with the reply to a queued command.
+	 */
+	public synchronized void send(CharSequence output) {
+		tickReplied = true;
+		queueTickOutput(output, tickCommand);
+	}
+	
+	/*
+	 * This method copies a reply from the game thread into the tick output.
+	 * The game thread decides whether it is text or binary, so replies and
+	 * pushed views on either side of a HELLO asking for binary come out right.
+	 */
+	private synchronized void queueTickOutput(CharSequence output, int command) {
+		
+		boolean binaryReply = tickBinary;
+		if (command == HELLO_BINARY) {
+			tickBinary = true;
+		}
+		tickOutput = appendReply(tickOutput, output, binaryReply);
+		notifyAll();
+	}
+	
+	/*
+	 * This method moves everything in the tick output into the output buffer.
+	 */
+	private void writeTickOutput() {
+		
+		synchronized (this) {
+			tickOutput.flip();
+			outputBuffer = ensureSpace(outputBuffer, tickOutput.remaining());
+			outputBuffer.put(tickOutput);
+			tickOutput.clear();
+		}
+	}
+	
+	/*
+	 * This method returns true once the player has won and been erased.
+	 */
+	boolean isFinished() {
+		return finished;
+	}
+
+	/*
+	 * This method takes a text command from a client and turns it into the
+	 * command code of the operation that needs to be performed. Commands that
+	 * aren't understood give a code that is answered with FAIL.
+	 */
+	static int parseCommand(String inputCommand) {
+		
+		// Protect against null pointer exception
+		if (inputCommand == null) {
+			return 0;
+		}
+		byte[] bytes = inputCommand.getBytes(StandardCharsets.US_ASCII);
+		return parseCommand(bytes, 0, bytes.length);
+	}
+	
+	/*
+	 * This method parses a text command straight out of the bytes it arrived in,
+	 * without creating any strings. Like splitting the trimmed line on spaces,
+	 * the command word is matched ignoring case and MOVE must be followed by
+	 * exactly one space and a one letter direction.
+	 */
+	static int parseCommand(byte[] input, int start, int end) {
+		
+		// Trim whitespace from both ends
+		while (start < end && input[start] <= ' ') {
+			start++;
+		}
+		while (end > start && input[end - 1] <= ' ') {
+			end--;
+		}
+		
+		// Find the end of the command word
+		int wordEnd = start;
+		while (wordEnd < end && input[wordEnd] != ' ') {
+			wordEnd++;
+		}
+		int argumentStart = wordEnd + 1;
+		boolean oneArgument = argumentStart < end && indexOfSpace(input, argumentStart, end) == -1;
+		
+		// Choose what to do based on the command received
+		if (matchesWord(input, start, wordEnd, "HELLO")) {
+			// Check if the client wants to switch to the binary protocol
+			if (oneArgument && matchesWord(input, argumentStart, end, "BINARY")) {
+				return HELLO_BINARY;
+			}
+			return BinaryProtocol.HELLO;
+			
+		} else if (matchesWord(input, start, wordEnd, "MOVE")) {
+			// The direction is checked when the move is made
+			if (oneArgument && end - argumentStart == 1) {
+				return BinaryProtocol.MOVE | Character.toUpperCase((char) input[argumentStart]) << 8;
+			}
+			return 0;
+			
+		} else if (matchesWord(input, start, wordEnd, "PICKUP")) {
+			return BinaryProtocol.PICKUP;
+			
+		} else if (matchesWord(input, start, wordEnd, "SUBSCRIBE")) {
+			return SUBSCRIBE;
+			
+		} else if (matchesWord(input, start, wordEnd, "VIEW")) {
+			// The size is checked when the view is changed
+			int size = oneArgument ? parseNumber(input, argumentStart, end, 3) : -1;
+			if (size > 0 && size < 256) {
+				return BinaryProtocol.VIEW | size << 8;
+			}
+			return 0;
+			
+		} else if (matchesWord(input, start, wordEnd, "LOOK")) {
+			// Check if the client wants the window as a change to the last one
+			if (oneArgument && matchesWord(input, argumentStart, end, "DELTA")) {
+				return LOOK_DELTA;
+			}
+			return BinaryProtocol.LOOK;
+			
+		} else if (matchesWord(input, start, wordEnd, "GOTO")) {
+			return parseGoto(input, argumentStart, end);
+		}
+		return 0;
+	}
+	
+	/*
+	 * This method turns the arguments of GOTO into its command code. GOTO EXIT
+	 * and GOTO GOLD hold the tile to look for and GOTO y x holds the row and
+	 * column in twelve bits each.
+	 */
+	private static int parseGoto(byte[] input, int start, int end) {
+		
+		if (matchesWord(input, start, end, "EXIT")) {
+			return GOTO_EXIT;
+		} else if (matchesWord(input, start, end, "GOLD")) {
+			return GOTO_GOLD;
+		}
+		
+		int space = start < end ? indexOfSpace(input, start, end) : -1;
+		if (space == -1) {
+			return 0;
+		}
+		int y = parseNumber(input, start, space, 4);
+		int x = parseNumber(input, space + 1, end, 4);
+		if (y < 0 || x < 0 || y > BinaryProtocol.MAX_GOTO_COORDINATE || x > BinaryProtocol.MAX_GOTO_COORDINATE) {
+			return 0;
+		}
+		return BinaryProtocol.GOTO | (y << 12 | x) << 8;
+	}
+	
+	/*
+	 * This method turns the opcode of a binary frame into its command code.
+	 * The frames are the same as the command codes apart from DELTA_LOOK.
+	 */
+	static int frameCommand(int opcode) {
+		
+		if (opcode == BinaryProtocol.DELTA_LOOK) {
+			return LOOK_DELTA;
+		}
+		return opcode;
+	}
+	
+	/*
+	 * This method reads a whole number of at most the given number of digits, or returns -1.
+	 */
+	private static int parseNumber(byte[] input, int start, int end, int digits) {
+		
+		if (end <= start || end - start > digits) {
+			return -1;
+		}
+		int size = 0;
+		for (int i = start; i < end; i++) {
+			if (input[i] < '0' || input[i] > '9') {
+				return -1;
+			}
+			size = size * 10 + (input[i] - '0');
+		}
+		return size;
+	}
+	
+	/*
+	 * This method checks if the bytes between start and end spell the given
+	 * upper case word, ignoring case.
+	 */
+	private static boolean matchesWord(byte[] input, int start, int end, String word) {
+		
+		if (end - start != word.length()) {
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			if (Character.toUpperCase((char) input[start + i]) != word.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * This method returns the position of the first space between start and end, or -1.
+	 */
+	private static int indexOfSpace(byte[] input, int start, int end) {
+		
+		for (int i = start; i < end; i++) {
+			if (input[i] == ' ') {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/*
+	 * This method is called for every command the server receives from a client.
+	 * It decides what should be outputted back to the client and adds it to the answer.
+	 */
+	private void runCommand(int command, StringBuilder answer) {
+		
+		char argument = (char) (command >>> 8);
+		
+		switch (command & 0xFF) {
+			
+		case BinaryProtocol.HELLO:
+			logic.hello(player, answer);
+			if (command == HELLO_BINARY) {
+				answer.append(" BINARY");
+			}
+			break;
+			
+		case BinaryProtocol.MOVE:
+			// Check there exists a valid direction to move in
+			if (argument == 'N' || argument == 'E' || argument == 'S' || argument == 'W') {
+				answer.append(logic.move(argument, player));
+			} else {
+				answer.append("FAIL");
+			}
+			break;
+			
+		case BinaryProtocol.PICKUP:
+			logic.pickup(player, answer);
+			break;
+			
+		case BinaryProtocol.LOOK:
+			int lookStart = answer.length();
+			logic.look(player, viewSize, answer);
+			
+			// Once a delta has been asked for every window sent is remembered
+			if (command == LOOK_DELTA && lookDelta == null) {
+				lookDelta = new LookDelta();
+			}
+			if (lookDelta != null) {
+				lookDelta.update(answer, lookStart, logic.getPlayerY(player), logic.getPlayerX(player),
+						command == LOOK_DELTA, binary);
+			}
+			break;
+			
+		case BinaryProtocol.SUBSCRIBE:
+			if (viewListener == this) {
+				startViewPublisher();
+			}
+			logic.subscribe(player, viewSize, viewListener);
+			subscribed = true;
+			answer.append("SUBSCRIBED");
+			break;
+			
+		case BinaryProtocol.VIEW:
+			// The window must have a middle tile and fit inside the map's border
+			if (argument % 2 == 1 && argument >= Map.MIN_VIEW && argument <= Map.MAX_VIEW) {
+				viewSize = argument;
+				if (subscribed) {
+					logic.subscribe(player, viewSize, viewListener);
+				}
+				answer.append("SUCCESS");
+			} else {
+				answer.append("FAIL");
+			}
+			break;
+			
+		case BinaryProtocol.GOTO:
+			answer.append(logic.goTo(player, command >>> 20, command >>> 8 & 0xFFF));
+			break;
+			
+		case BinaryProtocol.GOTO_NEAREST:
+			if (argument == 'E' || argument == 'G') {
+				answer.append(logic.goToNearest(player, argument));
+			} else {
+				answer.append("FAIL");
+			}
+			break;
+			
+		default:
+			answer.append("FAIL");
+			break;
+		}
+	}
+	
+	/*
+	 * This method handles receiving inputs from a client, either a line of
+	 * text or a binary frame. It returns DISCONNECT if the client wants to quit
+	 * or if the client program terminates, otherwise the command code received.
+	 * Text and frames are both decoded from the same reusable input buffer.
+	 */
+	private int readFromClient() {
+
+		try {
+			if (binary) {
+				if (!fillInput(1)) {
+					return DISCONNECT;
+				}
+				int opcode = inputBuffer[inputStart] & 0xFF;
+				
+				// The argument bytes of a frame go above the opcode in order
+				int argumentBytes = BinaryProtocol.argumentBytes(opcode);
+				if (!fillInput(1 + argumentBytes)) {
+					return DISCONNECT;
+				}
+				for (int i = 1; i <= argumentBytes; i++) {
+					opcode |= (inputBuffer[inputStart + i] & 0xFF) << (8 * (argumentBytes - i + 1));
+				}
+				inputStart += 1 + argumentBytes;
+				return frameCommand(opcode);
+			}
+			
+			// Look for the end of the line, reading more if it hasn't arrived
+			int searched = inputStart;
+			while (true) {
+				for (; searched < inputEnd; searched++) {
+					if (inputBuffer[searched] == '\n') {
+						long start = logic.getMetrics().startTimer();
+						int command = parseCommand(inputBuffer, inputStart, searched);
+						logic.getMetrics().commandParsed(start);
+						inputStart = searched + 1;
+						return command;
+					}
+				}
+				
+				// A line longer than the whole buffer can't be a valid command
+				searched -= inputStart;
+				if (!fillInput(inputEnd - inputStart + 1)) {
+					return DISCONNECT;
+				}
+				searched += inputStart;
+			}
+			
+		} catch (IOException e) {
+			return DISCONNECT;
+		}
+	}
+	
+	/*
+	 * This method reads from the client until the input buffer holds at least
+	 * the given number of unread bytes. It returns false if the client closes
+	 * the socket first or the bytes wouldn't fit in the buffer. Before waiting
+	 * on the client any replies still held back are sent.
+	 */
+	private boolean fillInput(int needed) throws IOException {
+		
+		if (needed > inputBuffer.length) {
+			return false;
+		}
+		
+		while (inputEnd - inputStart < needed) {
+			
+			// Move the unread bytes to the front to make room
+			if (inputStart > 0) {
+				System.arraycopy(inputBuffer, inputStart, inputBuffer, 0, inputEnd - inputStart);
+				inputEnd -= inputStart;
+				inputStart = 0;
+			}
+			
+			flushOutput();
+			int count = clientInput.read(inputBuffer, inputEnd, inputBuffer.length - inputEnd);
+			if (count == -1) {
+				return false;
+			}
+			logic.getMetrics().bytesRead(count);
+			inputEnd += count;
+		}
+		return true;
+	}
+	
+	/*
+	 * This method adds a reply for the client to the output buffer as a line of
+	 * text or as a binary frame. Replies aren't written straight away, a client
+	 * that pipelines commands gets the replies to everything it sent in one
+	 * write once there are no more complete commands waiting to be read.
+	 */
+	private void writeToClient(CharSequence output, boolean binaryReply) {
+		outputBuffer = appendReply(outputBuffer, output, binaryReply);
+	}
+	
+	/*
+	 * This method adds a reply to a buffer, returning a bigger copy of the
+	 * buffer if it didn't fit.
+	 */
+	private static ByteBuffer appendReply(ByteBuffer buffer, CharSequence output, boolean binaryReply) {
+		
+		buffer = ensureSpace(buffer, Math.max(output.length() + 1, BinaryProtocol.MAX_REPLY_BYTES));
+		if (binaryReply) {
+			BinaryProtocol.encodeReply(output, buffer);
+		} else {
+			for (int i = 0; i < output.length(); i++) {
+				buffer.put((byte) output.charAt(i));
+			}
+			buffer.put((byte) '\n');
+		}
+		return buffer;
+	}
+	
+	/*
+	 * This method returns the buffer, or a bigger copy of it if it can't fit
+	 * the given number of bytes.
+	 */
+	private static ByteBuffer ensureSpace(ByteBuffer buffer, int needed) {
+		
+		if (buffer.remaining() >= needed) {
+			return buffer;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+		buffer.flip();
+		return larger.put(buffer);
+	}
+	
+	/*
+	 * This method writes every reply held in the output buffer to the client.
+	 */
+	private void flushOutput() {
+		
+		synchronized (sessionLock) {
+			if (outputBuffer.position() == 0) {
+				return;
+			}
+			
+			try {
+				clientOutput.write(outputBuffer.array(), 0, outputBuffer.position());
+				logic.getMetrics().bytesWritten(outputBuffer.position());
+			} catch (IOException e) {
+				// A broken connection is noticed on the next read
+			}
+			outputBuffer.clear();
+		}
+	}
+	
+	/*
+	 * This method provides an input method for the server IP and port and
+	 * sets up the server socket, or a server socket channel for non-blocking mode.
+	 * A port given on the command line is used without asking, headless
+	 * servers that weren't given one use 4004.
+	 */
+	private static void setupServerSocket(boolean nonBlocking, String portOption) {
+		
+		boolean portValid = true;
+		do {
+			
+			// Get port info from user
+			String serverInfo = portOption;
+			if (serverInfo == null && headless) {
+				serverInfo = "4004";
+			} else if (serverInfo == null) {
+				serverInfo = JOptionPane.showInputDialog(null, "Please input a port"
+						, "Server Connection Details", JOptionPane.PLAIN_MESSAGE);
+			}
+					
+			if(serverInfo == null) {
+				System.exit(-1);
+			}
+			
+			// Check the port is in the valid port range
+			try{
+				port = Integer.parseInt(serverInfo);
+				if(port > 65536 || port < 0) {
+					showMSG("The port is invalid");
+					portValid = false;
+				}
+				
+			} catch(NumberFormatException e) {
+				showMSG("The port is invalid");
+				portValid = false;
+			}
+			
+			// A given port that is invalid can't be asked for again
+			if (!portValid && (portOption != null || headless)) {
+				System.exit(-1);
+			}
+			
+		} while(portValid == false);
+		
+		// Setup server socket
+		try {
+			if (nonBlocking) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+			} else {
+				serverSock = new ServerSocket(port, ACCEPT_BACKLOG);
+			}
+		} catch (IOException e) {
+			showMSG("Port already in use this server will be terminated");
+			System.exit(-1);
+		}
+	}
+	
+	/*
+	 * This method returns the value of a command line option given
+	 * as --name=value, or just --name for true. Options not on the command
+	 * line are looked up in the config file, then the default is used.
+	 */
+	private static String getOption(String[] args, String name, String defaultValue) {
+		
+		for (String arg : args) {
+			if (arg.startsWith("--" + name + "=")) {
+				return arg.substring(name.length() + 3);
+			}
+			if (arg.equals("--" + name)) {
+				return "true";
+			}
+		}
+		return config.getProperty(name, defaultValue);
+	}
+	
+	/*
+	 * This method shows error messages to the user, on the console
+	 * if the server is headless.
+	 */
+	private static void showMSG(String errorMSG) {
+		if (headless) {
+			System.err.println(errorMSG);
+			return;
+		}
+		JOptionPane.showMessageDialog(null, errorMSG, null, JOptionPane.WARNING_MESSAGE);
+	}
+	
+	
+}
@@ -1,207 +1,297 @@
-/*
- * This class handles the server world GUI which shows the whole map and
- * all the players moving in real time. The GUI also displays the server's
- * IP address and port.
- */
-
-import java.awt.Dimension;
-import java.awt.FlowLayout;
-import java.awt.Font;
-import java.awt.Insets;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
-import javax.swing.*;
-
-public class ServerGUI {
-	
-	JPanel mapPanel = new JPanel();
-	char[][] map;
-	boolean firstTime = true;
-	int mapWidth;
-	int mapLength;
-	int port;
-	
-	/*
-	 * This constructor creates a new thread to create the GUI adn also stores
-	 * the map and port number.
-	 */
-	public ServerGUI(char[][] map, int port) {
-		this.port = port;
-		this.map = map;
-		
-		javax.swing.SwingUtilities.invokeLater(new Runnable() {
-			public void run() {
-				createGUI();
-			}
-		});
-	}
-	
-	/*
-	 * This method creates the server GUI and all of the components on it.
-	 * There is a scrollable pane which allows maps of any size to be
-	 * viewed. There is also a server shutdown button and a text area to
-	 * display the server's IP and port number.
-	 */
-	private void createGUI() {
-		
-		mapWidth = map[0].length;
-		mapLength = map.length;
-		
-		FlowLayout flowLayout = new FlowLayout(FlowLayout.LEFT, 0, 0);
-
-		JFrame frame = new JFrame("Dungeon of Doom");
-		
-		// Setup frame and scroll pane
-		frame.setPreferredSize(new Dimension(973,600));
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);		
-		frame.setLayout(flowLayout);
-		
-		JScrollPane mapScrollPane = new JScrollPane();
-		mapScrollPane.getViewport().setPreferredSize(new Dimension((mapWidth * 50), mapLength * 50));
-		mapScrollPane.setPreferredSize(new Dimension(968,468));
-		mapScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
-		mapScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
-		
-		
-		mapPanel.setLayout(flowLayout);
-		mapPanel.setPreferredSize(new Dimension(mapWidth * 50, mapLength * 50));
-		mapPanel = createMapPanel();
-		mapScrollPane.getViewport().add(mapPanel);
-		
-		FlowLayout altFlowLayout = new FlowLayout(FlowLayout.LEFT, 20, 15);
-		JPanel settingsPanel = new JPanel();
-		settingsPanel.setLayout(altFlowLayout);
-		
-		// Get IP address of server
-		InetAddress ip = null;
-		try {
-			ip = InetAddress.getLocalHost();
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		}
-		
-		JTextArea serverIPText = new JTextArea("Server IP: " + ip.getHostAddress() + ":" + String.valueOf(port));
-		serverIPText.setOpaque(false);
-		serverIPText.setEditable(false);
-		serverIPText.setFont(new Font("Arial", Font.PLAIN, 18));
-		settingsPanel.add(serverIPText);
-		
-		// Create shutdown button and attach an action listener
-		JButton shutdownButton = new JButton("Shutdown Server");
-		shutdownButton.setPreferredSize(new Dimension(630,75));
-		shutdownButton.setMargin(new Insets(0, 0, 0, 0));
-		shutdownButton.setFont(new Font("Arial", Font.PLAIN, 18));
-		shutdownButton.addActionListener(new ActionListener() {
-			public void actionPerformed(ActionEvent arg0) {
-				System.exit(-1);
-			}
-		});
-		settingsPanel.add(shutdownButton);
-		
-		// Add all the componenets to the frame
-		frame.add(mapScrollPane);
-		frame.add(settingsPanel);
-		frame.pack();
-		frame.setLocationRelativeTo(null);
-		frame.setResizable(false);
-		frame.setVisible(true);
-	}
-	
-	/*
-	 * This method creates the map view filling it with pictures that
-	 * represent map tiles.
-	 */
-	private JPanel createMapPanel () {
-		
-		ImageIcon icon = null;
-		for(int i = 0; i < mapWidth * mapLength; i++) {
-			
-			switch (map[i / mapWidth][i % mapWidth]) {
-				
-			case 'X':
-				icon = new ImageIcon("Wall.png");
-				break;
-				
-			case '#':
-				icon = new ImageIcon("Wall.png");
-				break;	
-				
-			case '.':
-				icon = new ImageIcon("Floor.png");
-				break;
-				
-			case 'G':
-				icon = new ImageIcon("Gold.png");
-				break;
-				
-			case 'E':
-				icon = new ImageIcon("Exit.png");
-				break;
-			
-			}
-			
-			mapPanel.add(new JLabel(icon));
-		}
-		
-		mapPanel.revalidate();
-		mapPanel.repaint();	
-		return mapPanel;
-	}
-	
-	/*
-	 * This method is used when a player moves on the server. It updates
-	 * the server GUI to show the players new position.
-	 */
-	public void movePlayer(int[] oldPosition, int[] newPosition ) {
-		erasePlayer(oldPosition);
-		placePlayer(newPosition);
-		mapPanel.revalidate();
-		mapPanel.repaint();	
-	}
-	
-	/*
-	 * This method updates the server GUI when a plyer moves off a tile or
-	 * quits the server. It replaces the player tile with the map tile
-	 * they were stood on e.g. gold.
-	 */
-	public void erasePlayer(int[] playerPosition){
-		
-		// Use players postion to figure out which tile to change
-		mapPanel.remove(playerPosition[0] * mapWidth + playerPosition[1]);
-		
-		// Select which tile needs to replace the player
-		switch(map[playerPosition[0]][playerPosition[1]]) {
-			
-		case '.':
-			mapPanel.add(new JLabel(new ImageIcon("Floor.png")), playerPosition[0] * mapWidth + playerPosition[1]);
-			break;
-			
-		case 'G':
-			mapPanel.add(new JLabel(new ImageIcon("Gold.png")), playerPosition[0] * mapWidth + playerPosition[1]);
-			break;
-			
-		case 'E':
-			mapPanel.add(new JLabel(new ImageIcon("Exit.png")), playerPosition[0] * mapWidth + playerPosition[1]);
-			break;
-		}
-		mapPanel.revalidate();
-		mapPanel.repaint();	
-	}
-	
-	/*
-	 * This method updates the server GUI when a player moves onto a tile
-	 * or spawns onto a tile. The tile the player is stood on is replaced
-	 * with a player tile.
-	 */
-	public void placePlayer(int [] playerPosition){
-		
-		// Use players postion to calculate which tile to change
-		mapPanel.remove(playerPosition[0] * mapWidth + playerPosition[1]);
-		mapPanel.add(new JLabel(new ImageIcon("Player.png")), playerPosition[0] * mapWidth + playerPosition[1]);
-		mapPanel.revalidate();
-		mapPanel.repaint();	
-	}
-}
+/*
+ * This class handles the server world GUI which shows the whole map and
+ * all the players moving in real time. The GUI also displays the server's
+ * IP address and port. The map is drawn by one component straight from
+ * tile pictures loaded once at start up, reading the tiles from the game's
+ * map so there is no second copy of them. The GUI reads the game's events
+ * on a timer on the Swing thread FRAME_RATE times a second and repaints
+ * only the tiles that changed, so however many moves a second the game
+ * makes the map is painted at most once a frame. The game never waits for
+ * the GUI, if the GUI falls too far behind it looks up where every player
+ * is and carries on from there.
+ */
+
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import javax.swing.*;
+
+public class ServerGUI {
+	
+	private MapView mapPanel;
+	Map map;
+	int mapWidth;
+	int mapLength;
+	int port;
+	private final static int TILE_SIZE = 50;
+	private final static int FRAME_RATE = 30;
+	private final static int MAX_EVENTS_PER_FRAME = 1 << 15;
+	private GameLogic logic;
+	private GameEvents.Reader events;
+	private GameEvents.Event event = new GameEvents.Event();
+	private long dropped = 0;
+	private int[] playerTiles = new int[0];
+	private byte[] playersOnTile;
+	private Image wall = new ImageIcon("Wall.png").getImage();
+	private Image floor = new ImageIcon("Floor.png").getImage();
+	private Image gold = new ImageIcon("Gold.png").getImage();
+	private Image exit = new ImageIcon("Exit.png").getImage();
+	private Image player = new ImageIcon("Player.png").getImage();
+	
+	/*
+	 * This constructor creates a new thread to create the GUI adn also stores
+	 * the map and port number. It starts reading the game's events straight
+	 * away so that nobody who joins while the window opens is missed.
+	 */
+	public ServerGUI(Map map, int port, GameLogic logic) {
+		this.port = port;
+		this.map = map;
+		this.logic = logic;
+		this.events = logic.getEvents().newReader();
+		
+		javax.swing.SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				createGUI();
+			}
+		});
+	}
+	
+	/*
+	 * This method creates the server GUI and all of the components on it.
+	 * There is a scrollable pane which allows maps of any size to be
+	 * viewed. There is also a server shutdown button and a text area to
+	 * display the server's IP and port number.
+	 */
+	private void createGUI() {
+		
+		mapWidth = map.getMapWidth();
+		mapLength = map.getMapHeight();
+		playersOnTile = new byte[mapWidth * mapLength];
+		
+		FlowLayout flowLayout = new FlowLayout(FlowLayout.LEFT, 0, 0);
+
+		JFrame frame = new JFrame("Dungeon of Doom");
+		
+		// Setup frame and scroll pane
+		frame.setPreferredSize(new Dimension(973,600));
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);		
+		frame.setLayout(flowLayout);
+		
+		mapPanel = new MapView();
+		mapPanel.setPreferredSize(new Dimension(mapWidth * TILE_SIZE, mapLength * TILE_SIZE));
+		
+		JScrollPane mapScrollPane = new JScrollPane(mapPanel);
+		mapScrollPane.setPreferredSize(new Dimension(968,468));
+		mapScrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
+		mapScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+		mapScrollPane.getHorizontalScrollBar().setUnitIncrement(TILE_SIZE / 2);
+		mapScrollPane.getVerticalScrollBar().setUnitIncrement(TILE_SIZE / 2);
+		
+		FlowLayout altFlowLayout = new FlowLayout(FlowLayout.LEFT, 20, 15);
+		JPanel settingsPanel = new JPanel();
+		settingsPanel.setLayout(altFlowLayout);
+		
+		// Get IP address of server
+		InetAddress ip = null;
+		try {
+			ip = InetAddress.getLocalHost();
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+		}
+		
+		JTextArea serverIPText = new JTextArea("Server IP: " + ip.getHostAddress() + ":" + String.valueOf(port));
+		serverIPText.setOpaque(false);
+		serverIPText.setEditable(false);
+		serverIPText.setFont(new Font("Arial", Font.PLAIN, 18));
+		settingsPanel.add(serverIPText);
+		
+		// Create shutdown button and attach an action listener
+		JButton shutdownButton = new JButton("Shutdown Server");
+		shutdownButton.setPreferredSize(new Dimension(630,75));
+		shutdownButton.setMargin(new Insets(0, 0, 0, 0));
+		shutdownButton.setFont(new Font("Arial", Font.PLAIN, 18));
+		shutdownButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				System.exit(-1);
+			}
+		});
+		settingsPanel.add(shutdownButton);
+		
+		// Add all the componenets to the frame
+		frame.add(mapScrollPane);
+		frame.add(settingsPanel);
+		frame.pack();
+		frame.setLocationRelativeTo(null);
+		frame.setResizable(false);
+		frame.setVisible(true);
+		
+		// Apply the game's events once a frame
+		new Timer(1000 / FRAME_RATE, new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				readEvents();
+			}
+		}).start();
+	}
+	
+	/*
+	 * This method runs on the Swing thread once a frame and applies the
+	 * events published since the last frame, then repaints the tiles that
+	 * changed together. A busy game can publish more events in a frame than
+	 * are read, the rest wait for the next frame.
+	 */
+	private void readEvents() {
+		
+		int top = mapLength;
+		int left = mapWidth;
+		int bottom = -1;
+		int right = -1;
+		
+		for (int read = 0; read < MAX_EVENTS_PER_FRAME && events.poll(event); read++) {
+			
+			// Events were lost so start again from where everyone is now
+			if (events.getDropped() != dropped) {
+				dropped = events.getDropped();
+				resync();
+				top = 0;
+				left = 0;
+				bottom = mapLength - 1;
+				right = mapWidth - 1;
+			}
+			
+			if (event.type == GameEvents.DESPAWN || event.type == GameEvents.WIN) {
+				setPlayerTile(event.player, -1);
+			} else {
+				setPlayerTile(event.player, event.y * mapWidth + event.x);
+			}
+			if (event.type == GameEvents.MOVE) {
+				top = Math.min(top, event.fromY);
+				left = Math.min(left, event.fromX);
+				bottom = Math.max(bottom, event.fromY);
+				right = Math.max(right, event.fromX);
+			}
+			top = Math.min(top, event.y);
+			left = Math.min(left, event.x);
+			bottom = Math.max(bottom, event.y);
+			right = Math.max(right, event.x);
+		}
+		
+		if (bottom >= 0) {
+			repaintTiles(top, left, bottom, right);
+		}
+	}
+	
+	/*
+	 * This method records which tile a player is on, -1 for no tile. Setting
+	 * the same tile twice changes nothing, so events the GUI has already
+	 * seen the result of can be applied again without harm.
+	 */
+	private void setPlayerTile(int player, int tile) {
+		
+		if (player >= playerTiles.length) {
+			int oldLength = playerTiles.length;
+			playerTiles = Arrays.copyOf(playerTiles, Math.max(player + 1, oldLength * 2));
+			Arrays.fill(playerTiles, oldLength, playerTiles.length, -1);
+		}
+		
+		int oldTile = playerTiles[player];
+		if (oldTile == tile) {
+			return;
+		}
+		if (oldTile >= 0) {
+			playersOnTile[oldTile]--;
+		}
+		if (tile >= 0) {
+			playersOnTile[tile]++;
+		}
+		playerTiles[player] = tile;
+	}
+	
+	/*
+	 * This method forgets where every player was and asks the game where
+	 * they are now. The events still waiting to be read are newer than what
+	 * was lost, so applying them afterwards ends up in the same place.
+	 */
+	private void resync() {
+		
+		Arrays.fill(playerTiles, -1);
+		Arrays.fill(playersOnTile, (byte) 0);
+		
+		int[] positions = logic.getPlayerPositions();
+		for (int i = 0; i < positions.length; i += 3) {
+			setPlayerTile(positions[i], positions[i + 1] * mapWidth + positions[i + 2]);
+		}
+	}
+	
+	/*
+	 * This method asks Swing to repaint the block of tiles between the given
+	 * corners. Swing only paints the part of it that is scrolled into view.
+	 */
+	private void repaintTiles(int top, int left, int bottom, int right) {
+		mapPanel.repaint(left * TILE_SIZE, top * TILE_SIZE, (right - left + 1) * TILE_SIZE,
+				(bottom - top + 1) * TILE_SIZE);
+	}
+	
+	/*
+	 * This component draws the map. Only the tiles inside the area being
+	 * painted are drawn, so painting costs the same however big the map is.
+	 */
+	private class MapView extends JComponent {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected void paintComponent(Graphics g) {
+			
+			Rectangle clip = g.getClipBounds();
+			if (clip == null) {
+				clip = new Rectangle(0, 0, getWidth(), getHeight());
+			}
+			int top = Math.max(0, clip.y / TILE_SIZE);
+			int left = Math.max(0, clip.x / TILE_SIZE);
+			int bottom = Math.min(mapLength - 1, (clip.y + clip.height - 1) / TILE_SIZE);
+			int right = Math.min(mapWidth - 1, (clip.x + clip.width - 1) / TILE_SIZE);
+			
+			for (int y = top; y <= bottom; y++) {
+				for (int x = left; x <= right; x++) {
+					g.drawImage(tileImage(y, x), x * TILE_SIZE, y * TILE_SIZE, this);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * This method returns the picture for a tile, the player if someone
+	 * is stood on it.
+	 */
+	private Image tileImage(int y, int x) {
+		
+		if (playersOnTile[y * mapWidth + x] > 0) {
+			return player;
+		}
+		
+		switch (map.lookAtTile(y, x)) {
+			
+		case 'G':
+			return gold;
+			
+		case 'E':
+			return exit;
+			
+		case '.':
+			return floor;
+			
+		default:
+			return wall;
+		}
+	}
+}
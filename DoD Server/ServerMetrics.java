@@ -0,0 +1,262 @@
+/*
+ * This class measures what the server is doing: how many of each command
+ * it answers and how long they take, how long parsing text commands takes,
+ * how long threads wait for the game logic's lock, how many players are
+ * connected and how many bytes go in and out. Once started it serves all
+ * of it as plain text on http://localhost:port/metrics, in the format
+ * Prometheus reads.
+ *
+ * Nothing is measured or even allocated until the metrics are started, so
+ * a server that doesn't ask for them only pays for checking a flag. Times are counted in
+ * LatencyHistograms split into stripes, and each thread records into the
+ * stripe its ID picks, so threads rarely touch the same counters. The
+ * stripes are only added together when the metrics are read.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ServerMetrics {
+
+	// Indexed by the opcode in the low byte of a command code, 0 is a command that wasn't understood
+	// and a LOOK asking for a delta is counted under the DELTA_LOOK frame's opcode
+	private final static String[] COMMAND_NAMES = { "UNKNOWN", "HELLO", "MOVE", "PICKUP", "LOOK", "DELTA_LOOK",
+			"SUBSCRIBE", "VIEW", "GOTO", "GOTO_NEAREST" };
+	private final static int STRIPES = Math.min(16,
+			Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+	private final static double[] QUANTILES = { 0.5, 0.99 };
+
+	// Only set once start has made everything else, which enabled being volatile publishes
+	private volatile boolean enabled = false;
+	private LatencyHistogram[][] commandTimes;
+	private LatencyHistogram[] parseTimes;
+	private LatencyHistogram[] lockWaits;
+	private LongAdder lockWaitTotal;
+	private LongAdder bytesIn;
+	private LongAdder bytesOut;
+	private AtomicInteger connections;
+	private HttpServer httpServer;
+	private long startTime;
+	private long lastReportTime;
+	private long[] lastCounts;
+
+	private static LatencyHistogram[] newStripes() {
+
+		LatencyHistogram[] stripes = new LatencyHistogram[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LatencyHistogram();
+		}
+		return stripes;
+	}
+
+	/*
+	 * This method starts measuring and serving the metrics on the given
+	 * port. It only listens on the loopback address, so they can only be
+	 * read from the machine the server runs on.
+	 */
+	public void start(int port) throws IOException {
+
+		commandTimes = new LatencyHistogram[COMMAND_NAMES.length][];
+		for (int i = 0; i < commandTimes.length; i++) {
+			commandTimes[i] = newStripes();
+		}
+		parseTimes = newStripes();
+		lockWaits = newStripes();
+		lockWaitTotal = new LongAdder();
+		bytesIn = new LongAdder();
+		bytesOut = new LongAdder();
+		connections = new AtomicInteger();
+		lastCounts = new long[COMMAND_NAMES.length];
+
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = report().getBytes(StandardCharsets.US_ASCII);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream output = exchange.getResponseBody()) {
+					output.write(body);
+				}
+			}
+		});
+		httpServer.start();
+
+		startTime = System.nanoTime();
+		lastReportTime = startTime;
+		enabled = true;
+	}
+
+	/*
+	 * This method returns the time to pass to the methods below once what
+	 * is being timed is done, or 0 if nothing is being measured.
+	 */
+	public long startTimer() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/*
+	 * This method counts a command that was answered, timed from the given start.
+	 */
+	public void commandDone(int command, long start) {
+
+		if (start != 0) {
+			int opcode = command == Server.LOOK_DELTA ? BinaryProtocol.DELTA_LOOK : command & 0xFF;
+			if (opcode >= COMMAND_NAMES.length) {
+				opcode = 0;
+			}
+			stripe(commandTimes[opcode]).record(System.nanoTime() - start);
+		}
+	}
+
+	/*
+	 * This method counts a text command that was parsed, timed from the given start.
+	 */
+	public void commandParsed(long start) {
+
+		if (start != 0) {
+			stripe(parseTimes).record(System.nanoTime() - start);
+		}
+	}
+
+	/*
+	 * This method is called once the game logic's lock has been taken, with
+	 * the time from just before the thread asked for it.
+	 */
+	public void lockAcquired(long start) {
+
+		if (start != 0) {
+			long waited = System.nanoTime() - start;
+			stripe(lockWaits).record(waited);
+			lockWaitTotal.add(waited);
+		}
+	}
+
+	public void connectionOpened() {
+		if (enabled) {
+			connections.incrementAndGet();
+		}
+	}
+
+	public void connectionClosed() {
+		if (enabled) {
+			connections.decrementAndGet();
+		}
+	}
+
+	public void bytesRead(int count) {
+		if (enabled && count > 0) {
+			bytesIn.add(count);
+		}
+	}
+
+	public void bytesWritten(int count) {
+		if (enabled && count > 0) {
+			bytesOut.add(count);
+		}
+	}
+
+	/*
+	 * This method returns the stripe the calling thread records into.
+	 */
+	private static LatencyHistogram stripe(LatencyHistogram[] stripes) {
+		return stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+	}
+
+	/*
+	 * This method adds the stripes of a histogram together.
+	 */
+	private static LatencyHistogram merge(LatencyHistogram[] stripes) {
+
+		LatencyHistogram merged = new LatencyHistogram();
+		for (LatencyHistogram stripe : stripes) {
+			merged.add(stripe);
+		}
+		return merged;
+	}
+
+	/*
+	 * This method writes out every metric. Counts are totals since the
+	 * server started and command rates are per second since the last report.
+	 */
+	public synchronized String report() {
+
+		long now = System.nanoTime();
+		double sinceLastReport = Math.max(1, now - lastReportTime) / 1e9;
+		lastReportTime = now;
+		StringBuilder report = new StringBuilder(4096);
+
+		report.append("# TYPE dod_uptime_seconds gauge\n");
+		report.append("dod_uptime_seconds ").append((now - startTime) / 1e9).append('\n');
+		report.append("# TYPE dod_connections gauge\n");
+		report.append("dod_connections ").append(connections.get()).append('\n');
+		report.append("# TYPE dod_bytes_in_total counter\n");
+		report.append("dod_bytes_in_total ").append(bytesIn.sum()).append('\n');
+		report.append("# TYPE dod_bytes_out_total counter\n");
+		report.append("dod_bytes_out_total ").append(bytesOut.sum()).append('\n');
+
+		// Each command's stripes are added up once and a command not seen yet is left out
+		LatencyHistogram[] times = new LatencyHistogram[COMMAND_NAMES.length];
+		String[] labels = new String[COMMAND_NAMES.length];
+		for (int i = 0; i < COMMAND_NAMES.length; i++) {
+			times[i] = merge(commandTimes[i]);
+			labels[i] = "command=\"" + COMMAND_NAMES[i] + "\"";
+		}
+
+		report.append("# TYPE dod_commands_total counter\n");
+		for (int i = 0; i < COMMAND_NAMES.length; i++) {
+			if (times[i].getCount() > 0) {
+				report.append("dod_commands_total{").append(labels[i]).append("} ").append(times[i].getCount()).append('\n');
+			}
+		}
+		report.append("# TYPE dod_command_rate gauge\n");
+		for (int i = 0; i < COMMAND_NAMES.length; i++) {
+			if (times[i].getCount() > 0) {
+				double rate = (times[i].getCount() - lastCounts[i]) / sinceLastReport;
+				report.append("dod_command_rate{").append(labels[i]).append("} ")
+						.append(String.format(Locale.ROOT, "%.1f", rate)).append('\n');
+				lastCounts[i] = times[i].getCount();
+			}
+		}
+		report.append("# TYPE dod_command_latency_nanoseconds summary\n");
+		for (int i = 0; i < COMMAND_NAMES.length; i++) {
+			if (times[i].getCount() > 0) {
+				summary(report, "dod_command_latency_nanoseconds", labels[i], times[i]);
+			}
+		}
+
+		report.append("# TYPE dod_parse_latency_nanoseconds summary\n");
+		summary(report, "dod_parse_latency_nanoseconds", null, merge(parseTimes));
+		report.append("# TYPE dod_lock_wait_nanoseconds summary\n");
+		summary(report, "dod_lock_wait_nanoseconds", null, merge(lockWaits));
+		report.append("dod_lock_wait_nanoseconds_sum ").append(lockWaitTotal.sum()).append('\n');
+		return report.toString();
+	}
+
+	/*
+	 * This method writes the p50, p99, max and count of a histogram.
+	 */
+	private static void summary(StringBuilder report, String name, String label, LatencyHistogram times) {
+
+		String labels = label == null ? "" : label + ",";
+		for (double quantile : QUANTILES) {
+			report.append(name).append("{").append(labels).append("quantile=\"").append(quantile).append("\"} ")
+					.append(times.percentile(quantile)).append('\n');
+		}
+		report.append(name).append("{").append(labels).append("quantile=\"1.0\"} ").append(times.getMax()).append('\n');
+		report.append(name).append("_count");
+		if (label != null) {
+			report.append("{").append(label).append("}");
+		}
+		report.append(' ').append(times.getCount()).append('\n');
+	}
+}
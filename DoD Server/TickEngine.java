@@ -0,0 +1,155 @@
+/*
+ * This class runs the game on a single thread in fixed ticks. Connection
+ * handlers don't call the game logic themselves, they put each command code into
+ * a bounded ring buffer and a single game thread applies everything that has
+ * arrived once per tick, in arrival order, before handing back the replies.
+ * Joining is the one thing that doesn't go through the queue, a new player
+ * is spawned by their connection's thread, and the server GUI reads player
+ * positions on its own thread. The game logic keeps its locks for them,
+ * but with everything else on the game thread they are rarely contended.
+ *
+ * Every reply is worked out in the same reused builder and handed back
+ * while it is still in it, so the receiver copies out what it needs.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class TickEngine implements Runnable {
+
+	/*
+	 * A reply is how the game thread hands a finished command's output
+	 * back to whoever owns the connection. The output is only valid until
+	 * send returns.
+	 */
+	public interface Reply {
+		void send(CharSequence output);
+	}
+
+	private Server[] sessions;
+	private int[] commands;
+	private Reply[] replies;
+	private AtomicLongArray sequences;
+	private AtomicLong tail = new AtomicLong();
+	private long head = 0;
+	private int mask;
+	private long tickNanos;
+	private StringBuilder output = new StringBuilder(256);
+
+	/*
+	 * Creates an engine whose ring buffer holds at least the given number
+	 * of commands (rounded up to a power of two). A tick rate of zero means
+	 * commands are applied as soon as they arrive.
+	 */
+	public TickEngine(int capacity, int ticksPerSecond) {
+
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		sessions = new Server[size];
+		commands = new int[size];
+		replies = new Reply[size];
+		sequences = new AtomicLongArray(size);
+		mask = size - 1;
+		tickNanos = ticksPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ticksPerSecond : 0;
+
+		// Each slot starts out free for the command with the same sequence number
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/*
+	 * This method queues one command from a player. Server.DISCONNECT means
+	 * the player has disconnected and should be erased once the commands before
+	 * it have been applied. If the buffer is full the caller waits for space.
+	 */
+	public void submit(Server session, int command, Reply reply) {
+
+		while (true) {
+			long position = tail.get();
+			int slot = (int) (position & mask);
+			long sequence = sequences.get(slot);
+
+			if (sequence == position) {
+				// The slot is free, try to claim it before another producer does
+				if (tail.compareAndSet(position, position + 1)) {
+					sessions[slot] = session;
+					commands[slot] = command;
+					replies[slot] = reply;
+					sequences.set(slot, position + 1);
+					return;
+				}
+			} else if (sequence < position) {
+				// The buffer is full so wait for the game thread to catch up
+				Thread.yield();
+			}
+		}
+	}
+
+	/*
+	 * This is the game thread. Every tick it applies the commands that are
+	 * waiting and then sleeps until the next tick is due.
+	 */
+	public void run() {
+
+		long nextTick = System.nanoTime();
+
+		while (true) {
+			int applied = applyBatch();
+
+			if (tickNanos > 0) {
+				nextTick += tickNanos;
+				long wait = nextTick - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				} else {
+					// Running behind, don't try to catch up with a burst of ticks
+					nextTick = System.nanoTime();
+				}
+			} else if (applied == 0) {
+				LockSupport.parkNanos(50000);
+			}
+		}
+	}
+
+	/*
+	 * This method applies every command that has been published so far and
+	 * returns how many there were. Commands from players that have already
+	 * won are dropped, as their ID may have been given to someone else.
+	 */
+	private int applyBatch() {
+
+		int applied = 0;
+
+		while (true) {
+			int slot = (int) (head & mask);
+			if (sequences.get(slot) != head + 1) {
+				return applied;
+			}
+
+			Server session = sessions[slot];
+			int command = commands[slot];
+			Reply reply = replies[slot];
+			sessions[slot] = null;
+			replies[slot] = null;
+
+			// Free the slot for the producer that wraps around to it
+			sequences.set(slot, head + mask + 1);
+			head++;
+			applied++;
+
+			if (session.isFinished()) {
+				continue;
+			}
+
+			if (command == Server.DISCONNECT) {
+				session.leave();
+			} else {
+				output.setLength(0);
+				session.respond(command, output);
+				reply.send(output);
+			}
+		}
+	}
+}
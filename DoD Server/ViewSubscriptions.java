@@ -0,0 +1,241 @@
+/*
+ * This class keeps track of the players that have asked to be told when
+ * something in their look window changes, so they don't have to keep
+ * sending LOOK. The map is split into square cells and every subscriber
+ * is listed in the cell they are stood in. When a tile changes only the
+ * few cells close enough to see it are checked, so the work done grows
+ * with how often the world changes rather than with how many players
+ * there are.
+ *
+ * No shared lock is taken when a player moves. Each subscriber has a slot
+ * holding where they are, and each cell's list of subscribers is an array
+ * that is copied and swapped in with compare and set when someone joins or
+ * leaves the cell, which only happens when a subscriber crosses into
+ * another cell. Telling subscribers about a change just reads the arrays
+ * as they are. A subscriber crossing cells is added to the new cell before
+ * being taken off the old one, so they can be told twice but never missed.
+ *
+ * Listeners are called on whichever thread changed the tile, often while
+ * it holds the game lock, so they should only note that the view needs
+ * sending and hand the work to the thread that owns the connection.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ViewSubscriptions {
+
+	/*
+	 * A listener is told when a tile in its player's look window has changed.
+	 */
+	public interface Listener {
+		void viewChanged();
+	}
+
+	/*
+	 * A subscribed player. The position is y in the top half and x in the
+	 * bottom half so it is always read whole. Changing cells or leaving
+	 * locks the subscriber, so a move and an unsubscribe from different
+	 * threads can't leave them listed in a cell.
+	 */
+	private static class Subscriber {
+		Listener listener;
+		int radius;
+		int cell;
+		boolean removed;
+		volatile long position;
+	}
+
+	private final static int CELL_SIZE = 8;
+	private final static int INITIAL_CAPACITY = 16;
+
+	private int maxRadius;
+	private int cellRows;
+	private int cellColumns;
+	private AtomicReferenceArray<Subscriber[]> cells;
+	private volatile Subscriber[] subscribers = new Subscriber[INITIAL_CAPACITY];
+	private volatile int subscriberCount = 0;
+
+	/*
+	 * Creates the subscription grid for a map of the given size, for look
+	 * windows that reach at most the given number of tiles out from the player.
+	 */
+	public ViewSubscriptions(int height, int width, int maxRadius) {
+		this.maxRadius = maxRadius;
+		this.cellRows = (height + CELL_SIZE - 1) / CELL_SIZE;
+		this.cellColumns = (width + CELL_SIZE - 1) / CELL_SIZE;
+		this.cells = new AtomicReferenceArray<Subscriber[]>(cellRows * cellColumns);
+	}
+
+	/*
+	 * This method starts telling the listener about changes within the
+	 * given number of tiles of the player. Subscribing again changes the
+	 * listener or how far the player can see. Only subscribing and
+	 * unsubscribing lock, to keep the slots and count right.
+	 */
+	public synchronized void subscribe(int player, int y, int x, int radius, Listener listener) {
+
+		if (player >= subscribers.length) {
+			subscribers = Arrays.copyOf(subscribers, Math.max(subscribers.length * 2, player + 1));
+		}
+
+		Subscriber subscriber = new Subscriber();
+		subscriber.listener = listener;
+		subscriber.radius = radius;
+		subscriber.position = (long) y << 32 | x & 0xFFFFFFFFL;
+		subscriber.cell = cellOf(y, x);
+		addToCell(subscriber.cell, subscriber);
+
+		Subscriber old = subscribers[player];
+		if (old == null) {
+			subscriberCount++;
+		} else {
+			remove(old);
+		}
+		subscribers[player] = subscriber;
+	}
+
+	/*
+	 * This method stops telling anyone about changes around the player,
+	 * it is called when the player leaves the game.
+	 */
+	public synchronized void unsubscribe(int player) {
+
+		if (player >= subscribers.length || subscribers[player] == null) {
+			return;
+		}
+		remove(subscribers[player]);
+		subscribers[player] = null;
+		subscriberCount--;
+	}
+
+	private void remove(Subscriber subscriber) {
+
+		synchronized (subscriber) {
+			subscriber.removed = true;
+			removeFromCell(subscriber.cell, subscriber);
+		}
+	}
+
+	/*
+	 * This method is called when a player has moved. A subscriber is moved
+	 * to their new cell and everyone who can see either tile is told.
+	 */
+	public void moved(int player, int oldY, int oldX, int newY, int newX) {
+
+		if (subscriberCount == 0) {
+			return;
+		}
+
+		Subscriber[] current = subscribers;
+		Subscriber subscriber = player < current.length ? current[player] : null;
+		if (subscriber != null) {
+			subscriber.position = (long) newY << 32 | newX & 0xFFFFFFFFL;
+			int cell = cellOf(newY, newX);
+			synchronized (subscriber) {
+				if (cell != subscriber.cell && !subscriber.removed) {
+					addToCell(cell, subscriber);
+					removeFromCell(subscriber.cell, subscriber);
+					subscriber.cell = cell;
+				}
+			}
+		}
+		notifyWatchers(oldY, oldX);
+		notifyWatchers(newY, newX);
+	}
+
+	/*
+	 * This method tells every subscriber that can see the tile that it has changed.
+	 */
+	public void tileChanged(int y, int x) {
+
+		if (subscriberCount == 0) {
+			return;
+		}
+		notifyWatchers(y, x);
+	}
+
+	/*
+	 * This method checks the cells close enough to see the tile and tells
+	 * the subscribers in them whose look window covers it.
+	 */
+	private void notifyWatchers(int y, int x) {
+
+		int firstRow = Math.max(0, (y - maxRadius) / CELL_SIZE);
+		int lastRow = Math.min(cellRows - 1, (y + maxRadius) / CELL_SIZE);
+		int firstColumn = Math.max(0, (x - maxRadius) / CELL_SIZE);
+		int lastColumn = Math.min(cellColumns - 1, (x + maxRadius) / CELL_SIZE);
+
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				Subscriber[] members = cells.get(row * cellColumns + column);
+				if (members == null) {
+					continue;
+				}
+
+				for (Subscriber subscriber : members) {
+					long position = subscriber.position;
+					int radius = subscriber.radius;
+					if (Math.abs((int) (position >> 32) - y) <= radius && Math.abs((int) position - x) <= radius) {
+						subscriber.listener.viewChanged();
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * This method returns the cell a tile is in.
+	 */
+	private int cellOf(int y, int x) {
+
+		int row = Math.min(cellRows - 1, Math.max(0, y / CELL_SIZE));
+		int column = Math.min(cellColumns - 1, Math.max(0, x / CELL_SIZE));
+		return row * cellColumns + column;
+	}
+
+	/*
+	 * This method lists the subscriber in a cell, copying the cell's list
+	 * with them on the end and trying again if someone else changed it first.
+	 */
+	private void addToCell(int cell, Subscriber subscriber) {
+
+		while (true) {
+			Subscriber[] members = cells.get(cell);
+			Subscriber[] added;
+			if (members == null) {
+				added = new Subscriber[] { subscriber };
+			} else {
+				added = Arrays.copyOf(members, members.length + 1);
+				added[members.length] = subscriber;
+			}
+			if (cells.compareAndSet(cell, members, added)) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * This method takes the subscriber off a cell's list the same way.
+	 */
+	private void removeFromCell(int cell, Subscriber subscriber) {
+
+		while (true) {
+			Subscriber[] members = cells.get(cell);
+			int index = 0;
+			while (members[index] != subscriber) {
+				index++;
+			}
+
+			Subscriber[] removed = null;
+			if (members.length > 1) {
+				removed = new Subscriber[members.length - 1];
+				System.arraycopy(members, 0, removed, 0, index);
+				System.arraycopy(members, index + 1, removed, index, members.length - index - 1);
+			}
+			if (cells.compareAndSet(cell, members, removed)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * This class gives the benchmarks in dod.benchmarks a way into the game
+ * core, which they can't reach from their own package. The maps it plays
+ * on are generated once per size into a temporary maps folder, which is
+ * made the working folder the core reads maps from.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import dod.benchmarks.GameFixture;
+
+public class CoreFixture implements GameFixture {
+
+	private final static double WALLS = 0.2;
+	private final static double GOLD = 0.01;
+	private final static int EXITS = 4;
+
+	private static File mapFolder = null;
+
+	private GameLogic logic;
+	private int player;
+
+	public void createGame(int mapSize, int players, String logic, String storage) {
+
+		String mapName = generateMap(mapSize);
+		if (logic.equals("lockfree")) {
+			this.logic = new ConcurrentGameLogic(0, players);
+		} else {
+			this.logic = new GameLogic(0);
+		}
+
+		if (storage.equals("mapped")) {
+			mapName = convertMap(mapName);
+			this.logic.useMap(new MappedMap());
+		} else if (storage.equals("packed")) {
+			this.logic.useMap(new PackedMap(false));
+		}
+		this.logic.setMap(mapName, false);
+
+		for (int i = 0; i < players; i++) {
+			if (this.logic.addPlayer() == -1) {
+				throw new IllegalStateException("No room for " + players + " players");
+			}
+		}
+		player = 0;
+	}
+
+	public int getMapWidth() {
+		return logic.gameMap.getMapWidth();
+	}
+
+	public int getMapHeight() {
+		return logic.gameMap.getMapHeight();
+	}
+
+	public void lookWindow(int size, StringBuilder reply) {
+		logic.gameMap.lookWindow(logic.getPlayerY(player), logic.getPlayerX(player), size, logic.occupancy, reply);
+	}
+
+	public void look(StringBuilder reply) {
+		logic.look(player, reply);
+	}
+
+	public String move(char direction) {
+		return logic.move(direction, player);
+	}
+
+	public void pickup(StringBuilder reply) {
+		logic.gameMap.replaceTile(logic.getPlayerY(player), logic.getPlayerX(player), 'G');
+		logic.pickup(player, reply);
+	}
+
+	public boolean isOccupied(int y, int x) {
+		return logic.isOccupied(y, x);
+	}
+
+	public int parseCommand(byte[] command) {
+		return Server.parseCommand(command, 0, command.length);
+	}
+
+	public int loadMap(int mapSize, String format) {
+
+		String mapName = generateMap(mapSize);
+		Map map = new Map();
+		if (format.equals("dodmap")) {
+			mapName = convertMap(mapName);
+			map = new MappedMap();
+		}
+		map.readMap(mapName);
+		return map.getMapHeight();
+	}
+
+	/*
+	 * This method writes a square map with walls scattered over it, unless
+	 * one of that size has already been written, and returns its name.
+	 */
+	private static synchronized String generateMap(int mapSize) {
+
+		String mapName = "bench_" + mapSize + ".txt";
+		File file = new File(folder(), mapName);
+		if (file.exists()) {
+			return mapName;
+		}
+
+		Random rand = new Random(mapSize);
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write("name Benchmark " + mapSize + "\nwin 2\n");
+			char[] row = new char[mapSize];
+
+			for (int y = 0; y < mapSize; y++) {
+				for (int x = 0; x < mapSize; x++) {
+					double roll = rand.nextDouble();
+					if (y == 0 || x == 0 || y == mapSize - 1 || x == mapSize - 1 || roll < WALLS) {
+						row[x] = '#';
+					} else if (roll < WALLS + GOLD) {
+						row[x] = 'G';
+					} else {
+						row[x] = '.';
+					}
+				}
+				// Put the exits on the middle row so every map has some
+				if (y == mapSize / 2) {
+					for (int i = 1; i <= EXITS; i++) {
+						row[i * (mapSize - 1) / (EXITS + 1)] = 'E';
+					}
+				}
+				writer.write(row);
+				writer.write('\n');
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		file.deleteOnExit();
+		return mapName;
+	}
+
+	/*
+	 * This method converts a generated map to a .dodmap file, unless it has
+	 * already been converted, and returns its name.
+	 */
+	private static synchronized String convertMap(String mapName) {
+
+		String convertedName = mapName.replaceFirst("\\.txt$", ".dodmap");
+		File converted = new File(folder(), convertedName);
+		if (!converted.exists()) {
+			try {
+				MapConverter.main(new String[] { new File(folder(), mapName).getPath(), converted.getPath() });
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			converted.deleteOnExit();
+		}
+		return convertedName;
+	}
+
+	/*
+	 * This method creates the temporary maps folder the first time it is
+	 * needed. The core reads maps from the maps folder under user.dir.
+	 */
+	private static File folder() {
+
+		if (mapFolder == null) {
+			try {
+				File home = Files.createTempDirectory("dod-bench").toFile();
+				mapFolder = new File(home, "maps");
+				mapFolder.mkdir();
+				home.deleteOnExit();
+				mapFolder.deleteOnExit();
+				System.setProperty("user.dir", home.getPath());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return mapFolder;
+	}
+}
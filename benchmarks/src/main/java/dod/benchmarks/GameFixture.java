@@ -0,0 +1,58 @@
+/*
+ * The game core is written in the default package, which JMH won't generate
+ * benchmarks for and which classes in a named package can't import. The
+ * benchmarks therefore drive the core through this interface, implemented
+ * by CoreFixture in the default package and found by name at run time.
+ * Every call is a single, direct call into the core, so the interface adds
+ * nothing more than one interface call to what is measured.
+ */
+
+package dod.benchmarks;
+
+public interface GameFixture {
+
+	/*
+	 * This method creates a game on a generated mapSize by mapSize map with
+	 * the given number of players already spawned. Logic is "locked" or
+	 * "lockfree" and storage is "chars", "packed" or "mapped", as for the
+	 * server's --logic and --tiles options and .dodmap maps.
+	 */
+	void createGame(int mapSize, int players, String logic, String storage);
+
+	int getMapWidth();
+
+	int getMapHeight();
+
+	/*
+	 * These methods act as the first player of the game.
+	 */
+	void lookWindow(int size, StringBuilder reply);
+
+	void look(StringBuilder reply);
+
+	String move(char direction);
+
+	/*
+	 * This method puts a gold back under the first player before picking it
+	 * up, so every call is a successful pickup.
+	 */
+	void pickup(StringBuilder reply);
+
+	boolean isOccupied(int y, int x);
+
+	int parseCommand(byte[] command);
+
+	/*
+	 * This method reads in a generated mapSize by mapSize map from a "txt"
+	 * or "dodmap" file and returns its height.
+	 */
+	int loadMap(int mapSize, String format);
+
+	static GameFixture create() {
+		try {
+			return (GameFixture) Class.forName("CoreFixture").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("CoreFixture is missing from the class path", e);
+		}
+	}
+}
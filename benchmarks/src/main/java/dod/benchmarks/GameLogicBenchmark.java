@@ -0,0 +1,91 @@
+/*
+ * Measures the commands a player sends most through the game logic, with
+ * other players spread around the map, for both the locked and lock-free
+ * logic. Moves and tiles are picked at random ahead of time so the
+ * benchmark only measures the game.
+ */
+
+package dod.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameLogicBenchmark {
+
+	private final static int RANDOM_VALUES = 1 << 12;
+	private final static String DIRECTIONS = "NESW";
+
+	@Param({ "100", "1000", "3000" })
+	int mapSize;
+
+	@Param({ "1", "100", "1000" })
+	int players;
+
+	@Param({ "locked", "lockfree" })
+	String logic;
+
+	private GameFixture game;
+	private StringBuilder reply = new StringBuilder();
+	private char[] moves = new char[RANDOM_VALUES];
+	private int[] tileYs = new int[RANDOM_VALUES];
+	private int[] tileXs = new int[RANDOM_VALUES];
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+
+		game = GameFixture.create();
+		game.createGame(mapSize, players, logic, "chars");
+
+		Random rand = new Random(0);
+		for (int i = 0; i < RANDOM_VALUES; i++) {
+			moves[i] = DIRECTIONS.charAt(rand.nextInt(4));
+			tileYs[i] = rand.nextInt(game.getMapHeight());
+			tileXs[i] = rand.nextInt(game.getMapWidth());
+		}
+	}
+
+	@Benchmark
+	public String move() {
+		next = (next + 1) & (RANDOM_VALUES - 1);
+		return game.move(moves[next]);
+	}
+
+	@Benchmark
+	public StringBuilder look() {
+		reply.setLength(0);
+		game.look(reply);
+		return reply;
+	}
+
+	@Benchmark
+	public StringBuilder pickup() {
+		reply.setLength(0);
+		game.pickup(reply);
+		return reply;
+	}
+
+	@Benchmark
+	public boolean isOccupied() {
+		next = (next + 1) & (RANDOM_VALUES - 1);
+		return game.isOccupied(tileYs[next], tileXs[next]);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Measures building a look window straight from the map, for each way the
+ * map can store its tiles.
+ */
+
+package dod.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+	@Param({ "100", "1000", "3000" })
+	int mapSize;
+
+	@Param({ "chars", "packed", "mapped" })
+	String storage;
+
+	@Param({ "5", "31" })
+	int viewSize;
+
+	private GameFixture game;
+	private StringBuilder reply = new StringBuilder();
+
+	@Setup
+	public void setup() {
+		game = GameFixture.create();
+		game.createGame(mapSize, 1, "locked", storage);
+	}
+
+	@Benchmark
+	public StringBuilder lookWindow() {
+		reply.setLength(0);
+		game.lookWindow(viewSize, reply);
+		return reply;
+	}
+}
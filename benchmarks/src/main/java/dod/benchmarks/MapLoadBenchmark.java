@@ -0,0 +1,51 @@
+/*
+ * Measures how long it takes to read in a map before a game can start,
+ * from a text map and from a .dodmap file. Each load is timed once, as a
+ * server only ever loads its map once.
+ */
+
+package dod.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MapLoadBenchmark {
+
+	@Param({ "100", "1000", "3000" })
+	int mapSize;
+
+	@Param({ "txt", "dodmap" })
+	String format;
+
+	private GameFixture game;
+
+	@Setup
+	public void setup() {
+
+		game = GameFixture.create();
+		// Write the map before timing starts
+		game.loadMap(mapSize, format);
+	}
+
+	@Benchmark
+	public int loadMap() {
+		return game.loadMap(mapSize, format);
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Measures turning a line typed by a client into a command code.
+ */
+
+package dod.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+	@Param({ "MOVE N", "LOOK", "PICKUP", "GOTO 1234 567", "SOMETHING ELSE" })
+	String command;
+
+	private GameFixture game;
+	private byte[] input;
+
+	@Setup
+	public void setup() {
+		game = GameFixture.create();
+		input = command.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public int parseCommand() {
+		return game.parseCommand(input);
+	}
+}